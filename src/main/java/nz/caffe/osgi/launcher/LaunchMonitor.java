@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Receives timing events for the phases of a launch and for every bundle
+ * lifecycle operation. Implementations are called on the thread which
+ * performed the work, once the work is complete, and must return quickly.
+ * Timestamps are values of {@link System#nanoTime()}.
+ */
+public interface LaunchMonitor {
+
+    /**
+     * The bundle lifecycle operations.
+     */
+    enum Operation {
+        INSTALL, RESOLVE, START, STOP, UNINSTALL, UPDATE
+    }
+
+    /**
+     * The phases of a launch.
+     */
+    enum Phase {
+        AUTO_DEPLOY, AUTO_PROPERTIES, AUTO_REPOSITORY, CONFIG_LOAD, FRAMEWORK_INIT, FRAMEWORK_RESTART, FRAMEWORK_START,
+        READY, SHUTDOWN
+    }
+
+    /**
+     * Called when a bundle lifecycle operation has completed or failed.
+     *
+     * @param operation
+     *            the operation
+     * @param location
+     *            the bundle location
+     * @param bundle
+     *            the bundle or <tt>null</tt> if it could not be installed
+     * @param startLevel
+     *            the start level of the bundle or <tt>-1</tt> if not known
+     * @param startNanos
+     *            when the operation started
+     * @param endNanos
+     *            when the operation ended
+     * @param failure
+     *            the failure or <tt>null</tt> if successful
+     */
+    void bundle(Operation operation, String location, Bundle bundle, int startLevel, long startNanos, long endNanos,
+            Throwable failure);
+
+    /**
+     * Called when a phase of the launch has completed.
+     *
+     * @param phase
+     *            the phase
+     * @param detail
+     *            additional detail about the phase or <tt>null</tt>
+     * @param startNanos
+     *            when the phase started
+     * @param endNanos
+     *            when the phase ended
+     */
+    void phase(Phase phase, String detail, long startNanos, long endNanos);
+}
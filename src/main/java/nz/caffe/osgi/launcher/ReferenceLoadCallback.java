@@ -0,0 +1,35 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher;
+
+/**
+ * A {@link LoadCallback} whose bundles the framework may be able to read in
+ * place, so they can be installed by reference.
+ */
+public interface ReferenceLoadCallback extends LoadCallback {
+
+    /**
+     * Returns a location which the framework can use to read the bundle in
+     * place, without copying it into its storage area (e.g. a
+     * <tt>reference:file:</tt> URL).
+     *
+     * @param path
+     *            the path.
+     * @return the location or <tt>null</tt> if the bundle can not be read in
+     *         place.
+     */
+    String getReferenceLocation(final String path);
+}
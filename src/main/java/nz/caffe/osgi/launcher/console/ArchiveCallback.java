@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.console;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.osgi.framework.BundleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LoadCallback;
+
+/**
+ * Allow loading bundles packed inside a single archive, such as an executable
+ * launcher jar. The central directory of the archive is read once when the
+ * callback is created. Bundles are streamed from the archive without being
+ * extracted first; bundles which were stored uncompressed are read straight
+ * from their offset in the archive.
+ */
+public final class ArchiveCallback implements LoadCallback {
+
+    private static String normalise(final String directory) {
+        String dir = directory;
+
+        while (dir.startsWith("/")) {
+            dir = dir.substring(1);
+        }
+
+        while (dir.endsWith("/")) {
+            dir = dir.substring(0, dir.length() - 1);
+        }
+
+        return dir;
+    }
+
+    private final Map<String, List<String>> index = new HashMap<String, List<String>>();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ZipFile zipFile;
+
+    /**
+     * @param archive
+     *            the archive containing the bundles
+     * @throws IOException
+     *             if the archive can not be opened
+     */
+    public ArchiveCallback(final File archive) throws IOException {
+        super();
+        this.zipFile = new ZipFile(archive);
+
+        final Enumeration<? extends ZipEntry> entries = this.zipFile.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            final String name = entry.getName();
+
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            if (!name.endsWith(".jar") && !name.endsWith(".war")) {
+                this.logger.trace("Filtered {} from archive index", name);
+                continue;
+            }
+
+            final int slash = name.lastIndexOf('/');
+            final String directory = (slash < 0) ? "" : name.substring(0, slash);
+
+            List<String> bundles = this.index.get(directory);
+            if (bundles == null) {
+                bundles = new ArrayList<String>();
+                this.index.put(directory, bundles);
+            }
+
+            bundles.add(name);
+        }
+
+        for (final List<String> bundles : this.index.values()) {
+            Collections.sort(bundles);
+        }
+    }
+
+    /**
+     * Close the underlying archive. Bundles can not be opened afterwards.
+     *
+     * @throws IOException
+     *             if closing fails
+     */
+    public void close() throws IOException {
+        this.zipFile.close();
+    }
+
+    public List<String> listBundles(final String directory) {
+        final List<String> bundles = this.index.get(normalise(directory));
+
+        if (bundles == null) {
+            return new ArrayList<String>();
+        }
+
+        return new ArrayList<String>(bundles);
+    }
+
+    public InputStream openStream(final String bundle) throws BundleException {
+        final ZipEntry entry = this.zipFile.getEntry(bundle);
+
+        if (entry == null) {
+            throw new BundleException("No such archive entry " + bundle, BundleException.UNSPECIFIED);
+        }
+
+        try {
+            return this.zipFile.getInputStream(entry);
+        } catch (final IOException e) {
+            throw new BundleException("Unable to open stream for " + bundle, BundleException.UNSPECIFIED, e);
+        }
+    }
+}
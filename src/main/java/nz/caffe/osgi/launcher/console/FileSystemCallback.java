@@ -27,12 +27,12 @@ import org.osgi.framework.BundleException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import nz.caffe.osgi.launcher.LoadCallback;
+import nz.caffe.osgi.launcher.ReferenceLoadCallback;
 
 /**
  * Allow loading bundles from simple directories on the file system.
  */
-public final class FileSystemCallback implements LoadCallback {
+public final class FileSystemCallback implements ReferenceLoadCallback {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -63,4 +63,8 @@ public final class FileSystemCallback implements LoadCallback {
             throw new BundleException("Unable to open stream for " + bundle, BundleException.UNSPECIFIED, e);
         }
     }
+
+    public String getReferenceLocation(final String bundle) {
+        return "reference:" + new File(bundle).toURI();
+    }
 }
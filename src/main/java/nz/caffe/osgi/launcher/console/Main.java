@@ -18,9 +18,12 @@
  */
 package nz.caffe.osgi.launcher.console;
 
+import java.io.File;
+
 import org.osgi.framework.launch.Framework;
 
-import nz.caffe.osgi.launcher.Launcher;
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
+import nz.caffe.osgi.launcher.LoadCallback;
 import nz.caffe.osgi.launcher.impl.FrameworkEventPollingCallable;
 
 /**
@@ -39,6 +42,22 @@ public final class Main {
      **/
     public static final String BUNDLE_DIR_SWITCH = "-b";
 
+    /**
+     * Switch for specifying an archive containing the bundles.
+     **/
+    public static final String ARCHIVE_SWITCH = "-a";
+
+    /**
+     * Switch for launching the framework, measuring how long it takes to
+     * become ready and exiting.
+     **/
+    public static final String MEASURE_SWITCH = "--measure";
+
+    /**
+     * Switch for provisioning the framework storage and exiting.
+     **/
+    public static final String PROVISION_SWITCH = "--provision";
+
     /**
      * <p>
      * This method performs the main task of constructing an framework instance
@@ -48,7 +67,16 @@ public final class Main {
      * <ol>
      * <li><i><b>Examine and verify command-line arguments.</b></i> The launcher
      * accepts a "<tt>-b</tt>" command line switch to set the bundle auto-deploy
-     * directory and a single argument to set the bundle cache directory.</li>
+     * directory and a single argument to set the bundle cache directory. The
+     * "<tt>-a</tt>" switch loads the bundles from inside a single archive
+     * instead of the file system, in which case the bundle auto-deploy
+     * directories are paths inside the archive. The
+     * "<tt>--provision</tt>" switch deploys the bundles into the bundle cache
+     * directory and exits without starting the framework. The
+     * "<tt>--measure</tt>" switch starts the framework, waits until it is
+     * ready, writes the startup timeline and exits; the exit code is non-zero
+     * if the framework was not ready in time or exceeded the startup budget
+     * (see the <tt>caffe.measure.*</tt> properties).</li>
      * <li><i><b>Read the system properties file.</b></i> This is a file
      * containing properties to be pushed into <tt>System.setProperty()</tt>
      * before starting the framework. This mechanism is mainly shorthand for
@@ -156,36 +184,65 @@ public final class Main {
         // cache directory.
         String bundleDir = null;
         String cacheDir = null;
-        boolean expectBundleDir = false;
+        String archive = null;
+        String expectValueFor = null;
+        boolean provision = false;
+        boolean measure = false;
+        int positional = 0;
         for (final String arg : args) {
             if ("-h".equals(arg) || "--help".equals(arg)) {
                 printHelp();
                 System.exit(0);
-            } else if (BUNDLE_DIR_SWITCH.equals(arg)) {
-                expectBundleDir = true;
-            } else if (expectBundleDir) {
+            } else if (BUNDLE_DIR_SWITCH.equals(expectValueFor)) {
                 bundleDir = arg;
-                expectBundleDir = false;
+                expectValueFor = null;
+            } else if (ARCHIVE_SWITCH.equals(expectValueFor)) {
+                archive = arg;
+                expectValueFor = null;
+            } else if (PROVISION_SWITCH.equals(arg)) {
+                provision = true;
+            } else if (MEASURE_SWITCH.equals(arg)) {
+                measure = true;
+            } else if (BUNDLE_DIR_SWITCH.equals(arg)) {
+                expectValueFor = BUNDLE_DIR_SWITCH;
+            } else if (ARCHIVE_SWITCH.equals(arg)) {
+                expectValueFor = ARCHIVE_SWITCH;
             } else {
                 cacheDir = arg;
+                positional++;
             }
         }
 
-        if ((args.length > 3) || (expectBundleDir && bundleDir == null)) {
+        if ((positional > 1) || (expectValueFor != null) || (provision && measure)) {
             printHelp();
             System.exit(1);
         }
 
-        final Launcher launcher = new ConsoleLauncher(bundleDir, cacheDir, new FileSystemCallback());
+        // bundles are either loaded from the file system or from inside a
+        // single archive.
+        final LoadCallback callback = (archive == null) ? new FileSystemCallback()
+                : new ArchiveCallback(new File(archive));
+
+        final ConsoleLauncher launcher = new ConsoleLauncher(bundleDir, cacheDir, callback);
+
+        if (provision) {
+            launcher.provision();
+            System.exit(0);
+        }
+
+        if (measure) {
+            System.exit(StartupBenchmark.run(launcher));
+        }
 
         launcher.launch();
 
         final Framework fwk = launcher.getFramework();
-        final Thread shutdownHook = launcher.getShutdownHook();
 
+        final long start = System.nanoTime();
         fwk.start();
+        launcher.getLaunchMonitor().phase(Phase.FRAMEWORK_START, null, start, System.nanoTime());
 
-        final FrameworkEventPollingCallable callable = new FrameworkEventPollingCallable(fwk, shutdownHook);
+        final FrameworkEventPollingCallable callable = new FrameworkEventPollingCallable(launcher);
 
         callable.call();
 
@@ -194,6 +251,7 @@ public final class Main {
     }
 
     private static void printHelp() {
-        System.out.println("Usage: [-b <bundle-deploy-dir>] [<bundle-cache-dir>]");
+        System.out.println("Usage: [--provision | --measure] [-a <bundle-archive>] [-b <bundle-deploy-dir>]"
+                + " [<bundle-cache-dir>]");
     }
 }
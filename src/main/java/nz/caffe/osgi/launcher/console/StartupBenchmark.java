@@ -0,0 +1,244 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.console;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
+import nz.caffe.osgi.launcher.impl.StartLevelRamp;
+import nz.caffe.osgi.launcher.impl.StartupTimeline;
+
+/**
+ * Launches the framework, waits until it is ready, writes the startup
+ * timeline and stops the framework again. Used by {@link Main} for the
+ * <tt>--measure</tt> switch and by {@link ScalingBenchmark}.
+ */
+final class StartupBenchmark {
+
+    /**
+     * The property name used to specify the startup latency budget in
+     * milliseconds. If the framework takes longer to become ready, the exit
+     * code is {@link #EXIT_BUDGET_EXCEEDED}.
+     **/
+    public static final String BUDGET_PROP = "caffe.measure.budget";
+
+    /**
+     * The property name used to specify the file the startup timeline is
+     * written to. By default, it is written to standard output.
+     **/
+    public static final String REPORT_PROP = "caffe.measure.report";
+
+    /**
+     * The property name used to specify a comma-delimited list of service
+     * interface names. If set, the framework is ready once all of them are
+     * registered; otherwise it is ready once all bundles marked for starting
+     * are active.
+     **/
+    public static final String SERVICES_PROP = "caffe.measure.services";
+
+    /**
+     * The property name used to specify how long, in milliseconds, to wait for
+     * the framework to become ready. The default is five minutes.
+     **/
+    public static final String TIMEOUT_PROP = "caffe.measure.timeout";
+
+    /**
+     * Exit code when the framework took longer than the budget.
+     */
+    static final int EXIT_BUDGET_EXCEEDED = 2;
+
+    /**
+     * Exit code when the framework did not become ready before the timeout.
+     */
+    static final int EXIT_NOT_READY = 3;
+
+    private static final long DEFAULT_TIMEOUT = 5 * 60 * 1000L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupBenchmark.class);
+
+    private static final long POLL_INTERVAL = 10;
+
+    private static boolean areBundlesActive(final BundleContext context) {
+        final FrameworkStartLevel fsl = context.getBundle().adapt(FrameworkStartLevel.class);
+
+        // with a start level ramp, the framework begins at level 1.
+        String beginning = context.getProperty(StartLevelRamp.RAMP_TARGET_PROPERTY);
+        if (beginning == null) {
+            beginning = context.getProperty(Constants.FRAMEWORK_BEGINNING_STARTLEVEL);
+        }
+        final int target = (beginning == null) ? 1 : Integer.parseInt(beginning.trim());
+        if (fsl.getStartLevel() < target) {
+            return false;
+        }
+
+        for (final Bundle bundle : context.getBundles()) {
+            if (bundle.getBundleId() == 0 || bundle.getState() == Bundle.ACTIVE
+                    || bundle.getHeaders().get(Constants.FRAGMENT_HOST) != null) {
+                continue;
+            }
+
+            final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+            if (!bsl.isPersistentlyStarted() || bsl.getStartLevel() > fsl.getStartLevel()) {
+                continue;
+            }
+
+            // lazily activated bundles stay in STARTING until first used
+            if (bundle.getState() == Bundle.STARTING && bsl.isActivationPolicyUsed()) {
+                continue;
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean areServicesRegistered(final BundleContext context, final List<String> services) {
+        for (final String service : services) {
+            if (context.getServiceReference(service) == null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long getLong(final BundleContext context, final String key, final long defaultValue) {
+        final String value = context.getProperty(key);
+
+        return (value == null) ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * @param launcher
+     *            the launcher, which must not have been launched yet
+     * @return the exit code
+     * @throws Exception
+     *             if launching fails
+     */
+    static int run(final ConsoleLauncher launcher) throws Exception {
+        return run(launcher, new StartupTimeline());
+    }
+
+    /**
+     * @param launcher
+     *            the launcher, which must not have been launched yet
+     * @param timeline
+     *            the timeline to record the launch in, with a <tt>ready</tt>
+     *            mark once the framework is ready
+     * @return the exit code
+     * @throws Exception
+     *             if launching fails
+     */
+    static int run(final ConsoleLauncher launcher, final StartupTimeline timeline) throws Exception {
+        launcher.addLaunchMonitor(timeline);
+
+        launcher.launch();
+
+        final Framework fwk = launcher.getFramework();
+        try {
+            final long start = System.nanoTime();
+            fwk.start();
+            launcher.getLaunchMonitor().phase(Phase.FRAMEWORK_START, null, start, System.nanoTime());
+
+            final BundleContext context = fwk.getBundleContext();
+            final long budget = getLong(context, BUDGET_PROP, 0);
+            final long timeout = getLong(context, TIMEOUT_PROP, DEFAULT_TIMEOUT);
+
+            final List<String> services = new ArrayList<String>();
+            final String serviceNames = context.getProperty(SERVICES_PROP);
+            if (serviceNames != null) {
+                final StringTokenizer st = new StringTokenizer(serviceNames, ",");
+                while (st.hasMoreTokens()) {
+                    final String service = st.nextToken().trim();
+                    if (service.length() > 0) {
+                        services.add(service);
+                    }
+                }
+            }
+
+            final long deadline = System.currentTimeMillis() + timeout;
+            boolean ready = false;
+            while (!ready && System.currentTimeMillis() < deadline) {
+                ready = launcher.getReadiness().isReady()
+                        && (services.isEmpty() ? areBundlesActive(context) : areServicesRegistered(context, services));
+
+                if (!ready) {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+            }
+
+            timeline.mark(ready ? "ready" : "timeout");
+            final long elapsed = timeline.getElapsedMillis();
+
+            writeReport(timeline, context.getProperty(REPORT_PROP));
+
+            if (!ready) {
+                System.out.println("Framework was not ready after " + elapsed + " ms");
+                return EXIT_NOT_READY;
+            }
+
+            System.out.println("Framework ready after " + elapsed + " ms");
+
+            if (budget > 0 && elapsed > budget) {
+                System.out.println("Startup exceeded its budget of " + budget + " ms");
+                return EXIT_BUDGET_EXCEEDED;
+            }
+
+            return 0;
+        } finally {
+            fwk.stop();
+            fwk.waitForStop(0);
+
+            final Thread shutdownHook = launcher.getShutdownHook();
+            if (shutdownHook != null) {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            }
+        }
+    }
+
+    private static void writeReport(final StartupTimeline timeline, final String report) throws IOException {
+        if (report == null) {
+            final Writer out = new OutputStreamWriter(System.out, "UTF-8");
+            timeline.write(out);
+            return;
+        }
+
+        final Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+        try {
+            timeline.write(out);
+        } finally {
+            out.close();
+        }
+
+        LOG.info("Wrote startup timeline to {}", report);
+    }
+}
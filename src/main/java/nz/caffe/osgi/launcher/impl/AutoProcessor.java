@@ -18,17 +18,31 @@
  */
 package nz.caffe.osgi.launcher.impl;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -39,7 +53,14 @@ import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nz.caffe.osgi.launcher.LaunchMonitor;
+import nz.caffe.osgi.launcher.LaunchMonitor.Operation;
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
 import nz.caffe.osgi.launcher.LoadCallback;
+import nz.caffe.osgi.launcher.ReferenceLoadCallback;
+import nz.caffe.osgi.launcher.impl.DeploymentPlan.BundleStep;
+import nz.caffe.osgi.launcher.impl.DeploymentPlan.DirectoryStep;
+import nz.caffe.osgi.launcher.impl.DeploymentPlan.RepositoryStep;
 
 /**
  */
@@ -56,6 +77,28 @@ public final class AutoProcessor {
      * The property name used to specify auto-deploy start level.
      **/
     public static final String AUTO_DEPLOY_STARTLEVEL_PROPERTY = "caffe.auto.deploy.startlevel";
+    /**
+     * The property name used to specify whether auto-deploy bundles should be
+     * installed by reference, so they are read in place instead of being
+     * copied into the framework storage.
+     **/
+    public static final String AUTO_DEPLOY_REFERENCE_PROPERTY = "caffe.auto.deploy.reference";
+    /**
+     * The property name used to specify the order in which the bundles of
+     * each auto-deploy directory are installed: <tt>name</tt> (the default)
+     * for the order of their names or <tt>manifest</tt> for the order of
+     * their package, capability and bundle dependencies.
+     **/
+    public static final String AUTO_DEPLOY_ORDER_PROPERTY = "caffe.auto.deploy.order";
+    /**
+     * The name used for ordering auto-deploy bundles by their dependencies.
+     **/
+    public static final String AUTO_DEPLOY_ORDER_MANIFEST_VALUE = "manifest";
+    /**
+     * The property name used to specify a file to write the compiled
+     * deployment plan to.
+     **/
+    public static final String AUTO_DEPLOY_PLAN_PROPERTY = "caffe.auto.deploy.plan";
     /**
      * The name used for the auto-deploy install action.
      **/
@@ -72,6 +115,89 @@ public final class AutoProcessor {
      * The name used for the auto-deploy uninstall action.
      **/
     public static final String AUTO_DEPLOY_UNINSTALL_VALUE = "uninstall";
+    /**
+     * The property name used to specify how long, in milliseconds, a bundle
+     * may take to start before the thread starting it is sampled.
+     **/
+    public static final String AUTO_START_BUDGET_PROPERTY = "caffe.auto.start.budget";
+    /**
+     * The property name used to specify the interval, in milliseconds, at
+     * which a bundle exceeding its start budget is sampled.
+     **/
+    public static final String AUTO_START_SAMPLE_INTERVAL_PROPERTY = "caffe.auto.start.sample.interval";
+    /**
+     * The property name used to specify whether the launcher stops waiting for
+     * a bundle which exceeds its start budget and carries on with the others.
+     * Only a redeploy starts the bundles itself; at launch the framework starts
+     * them as it raises the start level.
+     **/
+    public static final String AUTO_START_ABANDON_PROPERTY = "caffe.auto.start.abandon";
+    /**
+     * The property name used to specify a directory in which to cache the
+     * remote auto-install and auto-start bundles.
+     **/
+    public static final String AUTO_FETCH_CACHE_PROPERTY = "caffe.auto.fetch.cache";
+    /**
+     * The property name used to specify how many remote bundles are downloaded
+     * concurrently.
+     **/
+    public static final String AUTO_FETCH_THREADS_PROPERTY = "caffe.auto.fetch.threads";
+    /**
+     * The property name used to specify how long, in milliseconds, to wait for
+     * a connection to a remote bundle's server.
+     **/
+    public static final String AUTO_FETCH_CONNECT_TIMEOUT_PROPERTY = "caffe.auto.fetch.connect.timeout";
+    /**
+     * The property name used to specify how long, in milliseconds, to wait for
+     * data while downloading a remote bundle.
+     **/
+    public static final String AUTO_FETCH_READ_TIMEOUT_PROPERTY = "caffe.auto.fetch.read.timeout";
+    /**
+     * The property name used to specify whether the auto-deploy bundles are
+     * verified before any of them is installed.
+     **/
+    public static final String AUTO_DEPLOY_VERIFY_PROPERTY = "caffe.auto.deploy.verify";
+    /**
+     * The property name used to specify whether verification requires every
+     * auto-deploy bundle to be signed.
+     **/
+    public static final String AUTO_DEPLOY_VERIFY_SIGNED_PROPERTY = "caffe.auto.deploy.verify.signed";
+    /**
+     * The property name used to specify a directory in which the last
+     * successfully deployed bundles are kept, so a failed auto-deploy run is
+     * rolled back to them.
+     **/
+    public static final String AUTO_DEPLOY_HISTORY_DIR_PROPERTY = "caffe.auto.deploy.history.dir";
+    /**
+     * The property name used to specify how long, in milliseconds, the started
+     * auto-deploy bundles may take to become active before the run is rolled
+     * back.
+     **/
+    public static final String AUTO_DEPLOY_HEALTH_TIMEOUT_PROPERTY = "caffe.auto.deploy.health.timeout";
+    /**
+     * The property name used to specify how bundles deployed more than once
+     * are handled: <tt>first</tt>, <tt>highest</tt> or <tt>fail</tt>.
+     **/
+    public static final String AUTO_DEPLOY_DUPLICATES_PROPERTY = "caffe.auto.deploy.duplicates";
+    /**
+     * The property name used to specify a local repository directory from
+     * which the root bundles and the bundles they need are installed.
+     **/
+    public static final String REPOSITORY_DIR_PROPERTY = "caffe.repository.dir";
+    /**
+     * The property name used to specify the index file of the repository.
+     **/
+    public static final String REPOSITORY_INDEX_PROPERTY = "caffe.repository.index";
+    /**
+     * The property name used to specify the comma-delimited symbolic names of
+     * the root bundles to install from the repository.
+     **/
+    public static final String REPOSITORY_ROOTS_PROPERTY = "caffe.repository.roots";
+    /**
+     * The property name used to specify the start level into which the
+     * repository bundles are installed.
+     **/
+    public static final String REPOSITORY_STARTLEVEL_PROPERTY = "caffe.repository.startlevel";
     /**
      * The property name prefix for the launcher's auto-install property.
      **/
@@ -81,6 +207,22 @@ public final class AutoProcessor {
      **/
     public static final String AUTO_START_PROP = "caffe.auto.start";
 
+    private static final long DEFAULT_FETCH_CONNECT_TIMEOUT = 10000;
+
+    private static final long DEFAULT_FETCH_READ_TIMEOUT = 30000;
+
+    private static final long DEFAULT_FETCH_THREADS = 4;
+
+    private static final long DEFAULT_HEALTH_TIMEOUT = 30000;
+
+    private static final long HEALTH_POLL_INTERVAL = 50;
+
+    private static final long REFRESH_TIMEOUT = 60000;
+
+    private static final String REFERENCE_PREFIX = "reference:";
+
+    private static final String REPOSITORY_INDEX_NAME = "repository.index";
+
     private static final Logger LOG = LoggerFactory.getLogger(AutoProcessor.class);
 
     /**
@@ -88,6 +230,7 @@ public final class AutoProcessor {
     private static class ProcessConfig {
         final String directory;
         final List<Bundle> installedBundles = new ArrayList<Bundle>();
+        List<String> paths;
         final int startLevel;
 
         /**
@@ -115,23 +258,101 @@ public final class AutoProcessor {
      **/
     public static void process(final Map<String, String> configMap, final BundleContext context,
             final String defaultAutoDeployDir, final LoadCallback callback) {
-        final Map<String, String> safeConfigMap = (configMap == null) ? new HashMap<String, String>() : configMap;
-        processAutoDeploy(safeConfigMap, context, defaultAutoDeployDir, callback);
-        processAutoProperties(safeConfigMap, context);
+        process(configMap, context, defaultAutoDeployDir, callback, new CompositeLaunchMonitor());
     }
 
     /**
-     * <p>
-     * Processes bundles in the auto-deploy directory, performing the specified
-     * deploy actions.
-     * </p>
+     * Used to instigate auto-deploy directory process and
+     * auto-install/auto-start configuration property processing during.
+     *
+     * @param configMap
+     *            Map of configuration properties.
+     * @param context
+     *            The system bundle context.
+     * @param defaultAutoDeployDir
+     * @param callback
+     *            the callback to use to list and process files from a dir
+     * @param monitor
+     *            the monitor to report the bundle operations to
+     **/
+    public static void process(final Map<String, String> configMap, final BundleContext context,
+            final String defaultAutoDeployDir, final LoadCallback callback, final LaunchMonitor monitor) {
+        try {
+            process(compile(configMap, context, defaultAutoDeployDir), context, callback, monitor, false);
+        } catch (final BundleException ex) {
+            LOG.error("Auto-deploy failed.", ex);
+        }
+    }
+
+    /**
+     * Execute a deployment plan.
+     *
+     * @param plan
+     *            the plan
+     * @param context
+     *            The system bundle context.
+     * @param callback
+     *            the callback to use to list and process files from a dir
+     * @param monitor
+     *            the monitor to report the bundle operations to
+     * @param checkHealth
+     *            whether the started bundles must become active before the run
+     *            is committed, which is only possible once the framework has
+     *            started
+     * @return <tt>false</tt> if the auto-deploy run failed and was rolled
+     *         back to the previous bundles
+     * @throws BundleException
+     *             if the bundles fail verification, before any is installed,
+     *             or if duplicates are found and the policy is to fail
      */
-    private static void processAutoDeploy(final Map<String, String> configMap, final BundleContext context,
-            final String defaultAutoDeployDir, final LoadCallback callback) {
-        LOG.trace("Processing auto-deploy");
+    static boolean process(final DeploymentPlan plan, final BundleContext context, final LoadCallback callback,
+            final LaunchMonitor monitor, final boolean checkHealth) throws BundleException {
+        long start = System.nanoTime();
+        final List<ProcessConfig> configs = listDirectories(plan, callback);
+        final Map<String, Future<File>> downloads = fetchRemote(plan, context);
+
+        // look for duplicates in every source before changing anything, so
+        // failing on a duplicate leaves the installed bundles as they were.
+        Set<String> skipped = Collections.emptySet();
+        if (plan.duplicates != null) {
+            final DuplicateDetector duplicates = new DuplicateDetector(plan.duplicates);
+            skipDuplicates(configs, duplicates, callback);
+            skipped = selectProperties(plan, duplicates, downloads);
+        }
+
+        final boolean deployed = processAutoDeploy(plan, context, callback, monitor, configs, checkHealth);
+        monitor.phase(Phase.AUTO_DEPLOY, null, start, System.nanoTime());
+
+        if (plan.repository != null) {
+            start = System.nanoTime();
+            processRepository(plan, context, monitor);
+            monitor.phase(Phase.AUTO_REPOSITORY, null, start, System.nanoTime());
+        }
+
+        start = System.nanoTime();
+        processAutoProperties(plan, context, monitor, downloads, skipped);
+        monitor.phase(Phase.AUTO_PROPERTIES, null, start, System.nanoTime());
+
+        return deployed;
+    }
+
+    /**
+     * Compile the auto-deploy directories and the auto-install and auto-start
+     * properties into a deployment plan.
+     *
+     * @param configMap
+     *            Map of configuration properties.
+     * @param context
+     *            The system bundle context.
+     * @param defaultAutoDeployDir
+     * @return the plan
+     */
+    static DeploymentPlan compile(final Map<String, String> configMap, final BundleContext context,
+            final String defaultAutoDeployDir) {
+        final Map<String, String> safeConfigMap = (configMap == null) ? new HashMap<String, String>() : configMap;
 
         // Determine if auto deploy actions to perform.
-        String action = configMap.get(AUTO_DEPLOY_ACTION_PROPERTY);
+        String action = safeConfigMap.get(AUTO_DEPLOY_ACTION_PROPERTY);
         action = (action == null) ? "" : action;
 
         final List<String> actionList = new ArrayList<String>();
@@ -140,55 +361,37 @@ public final class AutoProcessor {
 
         while (st.hasMoreTokens()) {
             final String s = st.nextToken().trim().toLowerCase(Locale.ENGLISH);
-            if (s.equals(AUTO_DEPLOY_INSTALL_VALUE) || s.equals(AUTO_DEPLOY_START_VALUE)
-                    || s.equals(AUTO_DEPLOY_UPDATE_VALUE) || s.equals(AUTO_DEPLOY_UNINSTALL_VALUE)) {
+            if ((s.equals(AUTO_DEPLOY_INSTALL_VALUE) || s.equals(AUTO_DEPLOY_START_VALUE)
+                    || s.equals(AUTO_DEPLOY_UPDATE_VALUE) || s.equals(AUTO_DEPLOY_UNINSTALL_VALUE))
+                    && !actionList.contains(s)) {
                 actionList.add(s);
             }
         }
 
-        if (actionList.isEmpty()) {
-            LOG.debug("No action configured");
-            return;
-        }
-
-        LOG.debug("Configured auto-deploy actions {}", actionList);
-
-        // Perform auto-deploy actions.
         // Retrieve the Start Level service, since it will be needed
         // to set the start level of the installed bundles.
         final FrameworkStartLevel sl = context.getBundle().adapt(FrameworkStartLevel.class);
 
         // Get start level for auto-deploy bundles.
         int startLevel = sl.getInitialBundleStartLevel();
-        if (configMap.get(AUTO_DEPLOY_STARTLEVEL_PROPERTY) != null) {
+        if (safeConfigMap.get(AUTO_DEPLOY_STARTLEVEL_PROPERTY) != null) {
             try {
-                startLevel = Integer.parseInt(configMap.get(AUTO_DEPLOY_STARTLEVEL_PROPERTY).toString());
+                startLevel = Integer.parseInt(safeConfigMap.get(AUTO_DEPLOY_STARTLEVEL_PROPERTY).toString());
             } catch (@SuppressWarnings("unused") final NumberFormatException ex) {
                 // Ignore and keep default level.
             }
         }
 
-        LOG.debug("Default start level for bundles {}", Integer.toString(startLevel));
-
-        // Get list of already installed bundles as a map.
-        final Map<String, Bundle> installedBundleMap = new HashMap<String, Bundle>();
-        final Bundle[] bundles = context.getBundles();
-        for (final Bundle bundle : bundles) {
-            installedBundleMap.put(bundle.getLocation(), bundle);
-        }
-
-        final List<ProcessConfig> configs = new ArrayList<ProcessConfig>();
+        final List<DirectoryStep> directories = new ArrayList<DirectoryStep>();
 
         // Get the auto deploy directory.
-        String autoDir = configMap.get(AUTO_DEPLOY_DIR_PROPERTY);
+        String autoDir = safeConfigMap.get(AUTO_DEPLOY_DIR_PROPERTY);
         autoDir = (autoDir == null) ? defaultAutoDeployDir : autoDir;
-        // Look in the specified bundle directory to create a list
-        // of all JAR files to install.
 
-        configs.add(new ProcessConfig(autoDir, startLevel));
+        directories.add(new DirectoryStep(autoDir, startLevel));
 
         // get the other auto-deploy directories
-        for (final Entry<String, String> entry : configMap.entrySet()) {
+        for (final Entry<String, String> entry : safeConfigMap.entrySet()) {
             if (entry.getKey().startsWith(AUTO_DEPLOY_DIR_PROPERTY + ".")) {
                 final String level = entry.getKey().substring((AUTO_DEPLOY_DIR_PROPERTY + ".").length());
 
@@ -198,58 +401,425 @@ public final class AutoProcessor {
                     // Ignore and keep default level.
                 }
 
-                configs.add(new ProcessConfig(entry.getValue(), startLevel));
+                directories.add(new DirectoryStep(entry.getValue(), startLevel));
             }
         }
 
         // sort to start in the correct order
-        Collections.sort(configs, new Comparator<ProcessConfig>() {
-            public int compare(final ProcessConfig o1, final ProcessConfig o2) {
+        Collections.sort(directories, new Comparator<DirectoryStep>() {
+            public int compare(final DirectoryStep o1, final DirectoryStep o2) {
                 return (o1.startLevel < o2.startLevel) ? -1 : ((o1.startLevel == o2.startLevel) ? 0 : 1);
             }
         });
 
+        final long budget = getLong(safeConfigMap, AUTO_START_BUDGET_PROPERTY, 0);
+        final String fetchCache = safeConfigMap.get(AUTO_FETCH_CACHE_PROPERTY);
+        final String historyDir = safeConfigMap.get(AUTO_DEPLOY_HISTORY_DIR_PROPERTY);
+
+        String duplicates = safeConfigMap.get(AUTO_DEPLOY_DUPLICATES_PROPERTY);
+        duplicates = (duplicates == null) ? null : duplicates.trim().toLowerCase(Locale.ENGLISH);
+        if (duplicates != null && !DuplicateDetector.FIRST.equals(duplicates)
+                && !DuplicateDetector.HIGHEST.equals(duplicates) && !DuplicateDetector.FAIL.equals(duplicates)) {
+            LOG.warn("Invalid value for {}, duplicates are deployed: {}", AUTO_DEPLOY_DUPLICATES_PROPERTY,
+                    duplicates);
+            duplicates = null;
+        }
+
+        return new DeploymentPlan.Builder().actions(actionList).directories(directories)
+                .bundles(compileAutoProperties(safeConfigMap, sl))
+                .byReference(Boolean.parseBoolean(safeConfigMap.get(AUTO_DEPLOY_REFERENCE_PROPERTY)))
+                .manifestOrder(AUTO_DEPLOY_ORDER_MANIFEST_VALUE
+                        .equalsIgnoreCase(safeConfigMap.get(AUTO_DEPLOY_ORDER_PROPERTY)))
+                .startBudget(budget,
+                        budget > 0 && Boolean.parseBoolean(safeConfigMap.get(AUTO_START_ABANDON_PROPERTY)))
+                .fetch((fetchCache == null) ? null : new File(fetchCache),
+                        (int) getLong(safeConfigMap, AUTO_FETCH_THREADS_PROPERTY, DEFAULT_FETCH_THREADS),
+                        getPositiveLong(safeConfigMap, AUTO_FETCH_CONNECT_TIMEOUT_PROPERTY,
+                                DEFAULT_FETCH_CONNECT_TIMEOUT),
+                        getPositiveLong(safeConfigMap, AUTO_FETCH_READ_TIMEOUT_PROPERTY, DEFAULT_FETCH_READ_TIMEOUT))
+                .verify(Boolean.parseBoolean(safeConfigMap.get(AUTO_DEPLOY_VERIFY_PROPERTY)),
+                        Boolean.parseBoolean(safeConfigMap.get(AUTO_DEPLOY_VERIFY_SIGNED_PROPERTY)))
+                .history((historyDir == null) ? null : new File(historyDir),
+                        getLong(safeConfigMap, AUTO_DEPLOY_HEALTH_TIMEOUT_PROPERTY, DEFAULT_HEALTH_TIMEOUT))
+                .duplicates(duplicates).repository(compileRepository(safeConfigMap, sl)).build();
+    }
+
+    /**
+     * <p>
+     * Compiles the auto-install and auto-start properties. The start level to
+     * which the bundles are assigned is specified by appending a ".n" to the
+     * property name, where "n" is the desired start level for the list of
+     * bundles. If no start level is specified, the default start level is
+     * assumed. A bundle listed more than once is installed into the lowest of
+     * its start levels and started if any of the listings is an auto-start
+     * property.
+     * </p>
+     */
+    private static List<BundleStep> compileAutoProperties(final Map<String, String> configMap,
+            final FrameworkStartLevel sl) {
+        // order the properties by start level, then name, so the plan does
+        // not depend on the iteration order of the configuration.
+        final Map<String, Integer> levels = new HashMap<String, Integer>();
+        final List<String> keys = new ArrayList<String>();
+
+        for (final String key : configMap.keySet()) {
+            final String lowerKey = key.toLowerCase(Locale.ENGLISH);
+
+            // Ignore all keys that are not an auto property.
+            if (!isAutoProperty(lowerKey, AUTO_INSTALL_PROP) && !isAutoProperty(lowerKey, AUTO_START_PROP)) {
+                continue;
+            }
+
+            // If the auto property does not have a start level,
+            // then assume it is the default bundle start level, otherwise
+            // parse the specified start level.
+            int startLevel = sl.getInitialBundleStartLevel();
+            if (!lowerKey.equals(AUTO_INSTALL_PROP) && !lowerKey.equals(AUTO_START_PROP)) {
+                try {
+                    startLevel = Integer.parseInt(lowerKey.substring(lowerKey.lastIndexOf('.') + 1));
+                } catch (final NumberFormatException ex) {
+                    LOG.warn("Invalid auto-start property " + lowerKey + ".", ex);
+                }
+            }
+
+            levels.put(key, Integer.valueOf(startLevel));
+            keys.add(key);
+        }
+
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(final String o1, final String o2) {
+                final int c = levels.get(o1).compareTo(levels.get(o2));
+                return (c == 0) ? o1.compareTo(o2) : c;
+            }
+        });
+
+        final Map<String, BundleStep> steps = new LinkedHashMap<String, BundleStep>();
+        for (final String key : keys) {
+            final boolean start = isAutoProperty(key.toLowerCase(Locale.ENGLISH), AUTO_START_PROP);
+            final int startLevel = levels.get(key).intValue();
+
+            // Parse the bundles associated with the key.
+            final StringTokenizer st = new StringTokenizer(configMap.get(key), "\" ", true);
+            for (String location = nextLocation(st); location != null; location = nextLocation(st)) {
+                final BundleStep existing = steps.get(location);
+                if (existing == null) {
+                    steps.put(location, new BundleStep(location, startLevel, start));
+                } else if (start && !existing.start) {
+                    steps.put(location, new BundleStep(location, existing.startLevel, true));
+                }
+            }
+        }
+
+        return new ArrayList<BundleStep>(steps.values());
+    }
+
+    private static RepositoryStep compileRepository(final Map<String, String> configMap,
+            final FrameworkStartLevel sl) {
+        final String directory = configMap.get(REPOSITORY_DIR_PROPERTY);
+        final String roots = configMap.get(REPOSITORY_ROOTS_PROPERTY);
+        if (directory == null || roots == null || roots.trim().length() == 0) {
+            return null;
+        }
+
+        final String index = configMap.get(REPOSITORY_INDEX_PROPERTY);
+
+        return new RepositoryStep(new File(directory),
+                (index == null) ? new File(directory, REPOSITORY_INDEX_NAME) : new File(index), roots.trim(),
+                (int) getLong(configMap, REPOSITORY_STARTLEVEL_PROPERTY, sl.getInitialBundleStartLevel()));
+    }
+
+    /**
+     * <p>
+     * Installs the root bundles of the repository and the bundles they need,
+     * then starts them.
+     * </p>
+     */
+    private static void processRepository(final DeploymentPlan plan, final BundleContext context,
+            final LaunchMonitor monitor) {
+        final RepositoryStep step = plan.repository;
+        final List<Bundle> toStart = new ArrayList<Bundle>();
+
+        for (final File file : RepositoryResolver.resolve(step.directory, step.index, step.roots, context)) {
+            final String uri = file.toURI().toString();
+            final String location = plan.byReference ? REFERENCE_PREFIX + uri : uri;
+
+            final long start = System.nanoTime();
+            Bundle b = null;
+            try {
+                if (plan.byReference) {
+                    b = context.installBundle(location);
+                } else {
+                    final InputStream stream = new FileInputStream(file);
+                    try {
+                        // Installing an installed bundle just returns it.
+                        b = context.installBundle(location, stream);
+                    } finally {
+                        try {
+                            stream.close();
+                        } catch (@SuppressWarnings("unused") final IOException ex) {
+                            // ignored
+                        }
+                    }
+                }
+                b.adapt(BundleStartLevel.class).setStartLevel(step.startLevel);
+
+                monitor.bundle(Operation.INSTALL, location, b, step.startLevel, start, System.nanoTime(), null);
+
+                if (!isFragment(b)) {
+                    toStart.add(b);
+                }
+            } catch (final Exception ex) {
+                LOG.error("Repository install for " + location + " failed.", ex);
+
+                monitor.bundle(Operation.INSTALL, location, b, step.startLevel, start, System.nanoTime(), ex);
+            }
+        }
+
+        for (final Bundle b : toStart) {
+            final long start = System.nanoTime();
+            try {
+                MonitoringListener.start(b, monitor, step.startLevel);
+            } catch (final Exception ex) {
+                LOG.error("Repository start for " + b.getLocation() + " failed.", ex);
+
+                monitor.bundle(Operation.START, b.getLocation(), b, step.startLevel, start, System.nanoTime(), ex);
+            }
+        }
+    }
+
+    /**
+     * List the bundles of the auto-deploy directories, each in the order it is
+     * installed in.
+     */
+    private static List<ProcessConfig> listDirectories(final DeploymentPlan plan, final LoadCallback callback)
+            throws BundleException {
+        final List<ProcessConfig> configs = new ArrayList<ProcessConfig>();
+        if (plan.actions.isEmpty()) {
+            return configs;
+        }
+
+        for (final DirectoryStep step : plan.directories) {
+            final ProcessConfig config = new ProcessConfig(step.directory, step.startLevel);
+            config.paths = callback.listBundles(config.directory);
+
+            LOG.trace("Found jar files {}", config.paths);
+
+            // install providers before the bundles which need them.
+            if (plan.manifestOrder && config.paths.size() > 1) {
+                config.paths = DeployOrder.sort(config.paths, callback);
+
+                LOG.debug("Ordered jar files by their dependencies {}", config.paths);
+            }
+
+            configs.add(config);
+        }
+
+        return configs;
+    }
+
+    /**
+     * Remove the bundles found in more than one auto-deploy directory, or
+     * already installed from elsewhere, from the directories.
+     */
+    private static void skipDuplicates(final List<ProcessConfig> configs, final DuplicateDetector duplicates,
+            final LoadCallback callback) throws BundleException {
+        final List<String> allPaths = new ArrayList<String>();
+        for (final ProcessConfig config : configs) {
+            allPaths.addAll(config.paths);
+        }
+
+        final Set<String> skipped = duplicates.select(allPaths, new DuplicateDetector.Source() {
+            public InputStream open(final String name) throws BundleException {
+                return callback.openStream(name);
+            }
+        });
+
+        if (!skipped.isEmpty()) {
+            for (final ProcessConfig config : configs) {
+                config.paths = new ArrayList<String>(config.paths);
+                config.paths.removeAll(skipped);
+            }
+        }
+    }
+
+    /**
+     * Download the remote auto-install and auto-start bundles which are not
+     * installed yet up front, in parallel.
+     */
+    private static Map<String, Future<File>> fetchRemote(final DeploymentPlan plan, final BundleContext context) {
+        if (plan.fetchCache == null) {
+            return Collections.emptyMap();
+        }
+
+        final List<String> remote = new ArrayList<String>();
+        for (final BundleStep step : plan.bundles) {
+            if (BundleFetcher.isRemote(step.location) && context.getBundle(step.location) == null) {
+                remote.add(step.location);
+            }
+        }
+
+        return new BundleFetcher(plan.fetchCache, plan.fetchThreads, plan.fetchConnectTimeout,
+                plan.fetchReadTimeout).fetch(remote);
+    }
+
+    /**
+     * @return the auto-install and auto-start locations which are skipped as
+     *         duplicates
+     */
+    private static Set<String> selectProperties(final DeploymentPlan plan, final DuplicateDetector duplicates,
+            final Map<String, Future<File>> downloads) throws BundleException {
+        final List<String> locations = new ArrayList<String>();
+        for (final BundleStep step : plan.bundles) {
+            locations.add(step.location);
+        }
+
+        return duplicates.select(locations, new DuplicateDetector.Source() {
+            public InputStream open(final String name) throws Exception {
+                final Future<File> download = downloads.get(name);
+                if (download != null) {
+                    return new FileInputStream(BundleFetcher.get(download));
+                }
+
+                // remote bundles are only read once they are cached.
+                final String url = name.startsWith(REFERENCE_PREFIX) ? name.substring(REFERENCE_PREFIX.length())
+                        : name;
+                return BundleFetcher.isRemote(url) ? null : new URL(url).openStream();
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Processes bundles in the auto-deploy directory, performing the specified
+     * deploy actions.
+     * </p>
+     */
+    private static boolean processAutoDeploy(final DeploymentPlan plan, final BundleContext context,
+            final LoadCallback callback, final LaunchMonitor monitor, final List<ProcessConfig> configs,
+            final boolean checkHealth) throws BundleException {
+        LOG.trace("Processing auto-deploy");
+
+        if (plan.actions.isEmpty()) {
+            LOG.debug("No action configured");
+            return true;
+        }
+
+        LOG.debug("Configured auto-deploy actions {}", plan.actions);
+
+        final boolean byReference = plan.byReference;
+
+        // Get list of already installed bundles as a map.
+        final Map<String, Bundle> installedBundleMap = new HashMap<String, Bundle>();
+        final Bundle[] bundles = context.getBundles();
+        for (final Bundle bundle : bundles) {
+            installedBundleMap.put(bundle.getLocation(), bundle);
+        }
+
+        final List<String> allPaths = new ArrayList<String>();
+        for (final ProcessConfig config : configs) {
+            allPaths.addAll(config.paths);
+        }
+
+        // check every bundle before installing any of them.
+        if (plan.verify && (plan.hasAction(AUTO_DEPLOY_INSTALL_VALUE) || plan.hasAction(AUTO_DEPLOY_UPDATE_VALUE))) {
+            final long start = System.nanoTime();
+
+            BundleVerifier.verify(allPaths, callback, plan.verifySigned);
+
+            LOG.debug("Verified {} bundles in {} ms", Integer.toString(allPaths.size()),
+                    Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+
+        // record the changes so a failed run can be undone.
+        DeployTransaction transaction = null;
+        if (plan.historyDir != null) {
+            try {
+                transaction = new DeployTransaction(plan.historyDir);
+            } catch (final IOException ex) {
+                throw new BundleException("Unable to read the auto-deploy history " + plan.historyDir,
+                        BundleException.UNSPECIFIED, ex);
+            }
+        }
+        boolean failed = false;
+
+        // the updated and uninstalled bundles are refreshed together.
+        final List<Bundle> stale = new ArrayList<Bundle>();
+
         for (final ProcessConfig config : configs) {
 
             LOG.debug("Processing directory {} with start level {}", config.directory,
                     Integer.toString(config.startLevel));
 
-            final List<String> jarList = callback.listBundles(config.directory);
+            final long directoryStart = System.nanoTime();
 
-            LOG.trace("Found jar files {}", jarList);
+            final List<String> jarList = config.paths;
 
             // Install bundle JAR files and remember the bundle objects.
-            for (final String location : jarList) {
+            for (final String path : jarList) {
+                // When installing by reference, the framework reads the
+                // bundle from its original location.
+                final String reference = (byReference && callback instanceof ReferenceLoadCallback)
+                        ? ((ReferenceLoadCallback) callback).getReferenceLocation(path) : null;
+                final String location = (reference == null) ? path : reference;
+
+                if (byReference && reference == null) {
+                    LOG.debug("Bundle {} can not be installed by reference", path);
+                }
+
                 // Look up the bundle by location, removing it from
                 // the map of installed bundles so the remaining bundles
                 // indicate which bundles may need to be uninstalled.
                 Bundle b = installedBundleMap.remove(location);
 
+                Operation operation = null;
+                final long start = System.nanoTime();
                 try {
                     // If the bundle is not already installed, then install it
                     // if the 'install' action is present.
-                    if ((b == null) && actionList.contains(AUTO_DEPLOY_INSTALL_VALUE)) {
-                        final InputStream stream = callback.openStream(location);
-                        try {
-                            b = context.installBundle(location, stream);
-                        } finally {
+                    if ((b == null) && plan.hasAction(AUTO_DEPLOY_INSTALL_VALUE)) {
+                        operation = Operation.INSTALL;
+                        if (reference == null) {
+                            final InputStream stream = callback.openStream(path);
                             try {
-                                stream.close();
-                            } catch (@SuppressWarnings("unused") final IOException ex) {
-                                // ignored
+                                b = context.installBundle(location, stream);
+                            } finally {
+                                try {
+                                    stream.close();
+                                } catch (@SuppressWarnings("unused") final IOException ex) {
+                                    // ignored
+                                }
                             }
+                        } else {
+                            b = context.installBundle(location);
+                        }
+
+                        if (transaction != null) {
+                            transaction.installed(b);
                         }
                     }
 
                     // If the bundle is already installed, then update it
                     // if the 'update' action is present.
-                    else if ((b != null) && actionList.contains(AUTO_DEPLOY_UPDATE_VALUE)) {
+                    else if ((b != null) && plan.hasAction(AUTO_DEPLOY_UPDATE_VALUE)) {
+                        operation = Operation.UPDATE;
+                        if (transaction != null) {
+                            transaction.updating(b);
+                        }
                         b.update();
+                        stale.add(b);
+                    }
+
+                    if (operation != null) {
+                        monitor.bundle(operation, location, b, config.startLevel, start, System.nanoTime(), null);
                     }
 
                     // If we have found and/or successfully installed a bundle,
                     // then add it to the list of bundles to potentially start
                     // and also set its start level accordingly.
+                    if ((b != null) && (transaction != null)) {
+                        transaction.deployed(location, path);
+                    }
+
                     if ((b != null) && !isFragment(b)) {
                         config.installedBundles.add(b);
 
@@ -259,115 +829,377 @@ public final class AutoProcessor {
                     }
                 } catch (final BundleException ex) {
                     LOG.error("Auto-deploy install failed for " + location + ".", ex);
+                    failed = true;
+
+                    monitor.bundle(operation == null ? Operation.INSTALL : operation, location, b,
+                            config.startLevel, start, System.nanoTime(), ex);
                 }
             }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Processed {} bundles from {} in {} ms",
+                        new Object[] { Integer.toString(jarList.size()), config.directory, Long.toString(
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - directoryStart)) });
+            }
         }
 
         // Uninstall all bundles not in the auto-deploy directory if
         // the 'uninstall' action is present.
-        if (actionList.contains(AUTO_DEPLOY_UNINSTALL_VALUE)) {
+        if (plan.hasAction(AUTO_DEPLOY_UNINSTALL_VALUE)) {
             for (final Entry<String, Bundle> entry : installedBundleMap.entrySet()) {
                 final Bundle b = entry.getValue();
                 if (b.getBundleId() != 0) {
+                    final int level = MonitoringListener.startLevel(b);
+                    final long start = System.nanoTime();
                     try {
+                        if (transaction != null) {
+                            transaction.uninstalling(b);
+                        }
                         b.uninstall();
+                        stale.add(b);
+
+                        monitor.bundle(Operation.UNINSTALL, b.getLocation(), b, level, start, System.nanoTime(),
+                                null);
                     } catch (final BundleException ex) {
                         LOG.error("Auto-deploy uninstall failed for " + b.getLocation() + ".", ex);
+                        failed = true;
+
+                        monitor.bundle(Operation.UNINSTALL, b.getLocation(), b, level, start, System.nanoTime(),
+                                ex);
                     }
                 }
             }
         }
 
+        // Refresh once for the whole run, so the bundles start against
+        // current wirings.
+        try {
+            if (!WiringRefresh.refresh(context, stale, REFRESH_TIMEOUT)) {
+                failed = true;
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt(); // reset flag
+            throw new BundleException("Interrupted refreshing the auto-deploy bundles", BundleException.UNSPECIFIED,
+                    ex);
+        }
+
+        // Bundles exceeding their start budget may be left to start in the
+        // background.
+        final long budget = plan.startBudget;
+        final ExecutorService starter = plan.abandonStarts ? Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "Auto-deploy Bundle Start");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+
         // Start all installed and/or updated bundles if the 'start'
         // action is present.
-        for (final ProcessConfig config : configs) {
-            if (actionList.contains(AUTO_DEPLOY_START_VALUE)) {
-                for (final Bundle bundle : config.installedBundles) {
-                    try {
-                        bundle.start();
-                    } catch (final BundleException ex) {
-                        LOG.error("Auto-deploy start failed for " + bundle.getLocation() + ".", ex);
+        try {
+            for (final ProcessConfig config : configs) {
+                if (plan.hasAction(AUTO_DEPLOY_START_VALUE)) {
+                    for (final Bundle bundle : config.installedBundles) {
+                        final long start = System.nanoTime();
+                        try {
+                            start(bundle, starter, budget, monitor, config.startLevel);
+                        } catch (final BundleException ex) {
+                            LOG.error("Auto-deploy start failed for " + bundle.getLocation() + ".", ex);
+                            failed = true;
+
+                            monitor.bundle(Operation.START, bundle.getLocation(), bundle, config.startLevel, start,
+                                    System.nanoTime(), ex);
+                        }
                     }
                 }
             }
+        } finally {
+            if (starter != null) {
+                // abandoned starts carry on until their activators return.
+                starter.shutdown();
+            }
         }
+
+        return (transaction == null)
+                || finish(transaction, failed, plan, configs, context, callback, checkHealth);
     }
 
     /**
-     * <p>
-     * Processes the auto-install and auto-start properties from the specified
-     * configuration properties.
-     * </p>
+     * Commit the run if every bundle was deployed and, when waiting for them,
+     * became active in time, otherwise roll it back. Before the framework has
+     * started, a started bundle only becomes active as the framework raises the
+     * start level, so only the failed operations decide.
      */
-    private static void processAutoProperties(final Map<String, String> configMap, final BundleContext context) {
-
-        // Perform auto-deploy actions.
-        // Retrieve the Start Level service, since it will be needed
-        // to set the start level of the installed bundles.
-        final FrameworkStartLevel sl = context.getBundle().adapt(FrameworkStartLevel.class);
+    private static boolean finish(final DeployTransaction transaction, final boolean failed, final DeploymentPlan plan,
+            final List<ProcessConfig> configs, final BundleContext context, final LoadCallback callback,
+            final boolean checkHealth) throws BundleException {
+        boolean healthy = !failed;
+        if (healthy && checkHealth && plan.hasAction(AUTO_DEPLOY_START_VALUE)) {
+            final List<Bundle> started = new ArrayList<Bundle>();
+            for (final ProcessConfig config : configs) {
+                started.addAll(config.installedBundles);
+            }
 
-        // Retrieve all auto-install and auto-start properties and install
-        // their associated bundles. The auto-install property specifies a
-        // space-delimited list of bundle URLs to be automatically installed
-        // into each new profile, while the auto-start property specifies
-        // bundles to be installed and started. The start level to which the
-        // bundles are assigned is specified by appending a ".n" to the
-        // property name, where "n" is the desired start level for the list
-        // of bundles. If no start level is specified, the default start
-        // level is assumed.
-        for (final Entry<String, String> entry : configMap.entrySet()) {
-            final String lowerKey = entry.getKey().toLowerCase(Locale.ENGLISH);
+            healthy = awaitActive(started, plan.healthTimeout);
+            if (!healthy) {
+                LOG.error("Auto-deploy bundles did not become active within {} ms",
+                        Long.toString(plan.healthTimeout));
+            }
+        }
 
-            // Ignore all keys that are not an auto property.
-            if (!lowerKey.startsWith(AUTO_INSTALL_PROP) && !lowerKey.startsWith(AUTO_START_PROP)) {
-                continue;
+        if (healthy) {
+            try {
+                transaction.commit(callback);
+            } catch (final IOException ex) {
+                LOG.warn("Unable to record the deployed bundles in " + plan.historyDir, ex);
             }
+            return true;
+        }
 
-            // If the auto property does not have a start level,
-            // then assume it is the default bundle start level, otherwise
-            // parse the specified start level.
-            int startLevel = sl.getInitialBundleStartLevel();
-            if (!lowerKey.equals(AUTO_INSTALL_PROP) && !lowerKey.equals(AUTO_START_PROP)) {
-                try {
-                    startLevel = Integer.parseInt(lowerKey.substring(lowerKey.lastIndexOf('.') + 1));
-                } catch (final NumberFormatException ex) {
-                    LOG.warn("Invalid auto-start property " + lowerKey + ".", ex);
+        if (transaction.isEmpty()) {
+            return true;
+        }
+
+        LOG.error("Auto-deploy failed, rolling back to the previous bundles");
+        transaction.rollback(context, REFRESH_TIMEOUT);
+        return false;
+    }
+
+    private static boolean awaitActive(final List<Bundle> bundles, final long timeoutMillis) throws BundleException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (true) {
+            boolean active = true;
+            for (final Bundle bundle : bundles) {
+                final int state = bundle.getState();
+
+                // a lazily activated bundle waits in STARTING for its first
+                // class load.
+                if (state != Bundle.ACTIVE && !(state == Bundle.STARTING
+                        && bundle.getHeaders().get(Constants.BUNDLE_ACTIVATIONPOLICY) != null)) {
+                    active = false;
+                    break;
                 }
             }
 
-            // Parse and install the bundles associated with the key.
-            final StringTokenizer st = new StringTokenizer(entry.getValue(), "\" ", true);
-            for (String location = nextLocation(st); location != null; location = nextLocation(st)) {
+            if (active) {
+                return true;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(HEALTH_POLL_INTERVAL);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt(); // reset flag
+                throw new BundleException("Interrupted waiting for the auto-deploy bundles",
+                        BundleException.UNSPECIFIED, ex);
+            }
+        }
+    }
+
+    /**
+     * Start a bundle, on the starter if given, giving up waiting for it once
+     * it exceeds the budget. A successful start, and a start which fails after
+     * it was abandoned, is reported by the thread performing it.
+     */
+    private static void start(final Bundle bundle, final ExecutorService starter, final long budgetMillis,
+            final LaunchMonitor monitor, final int startLevel) throws BundleException {
+        if (starter == null) {
+            MonitoringListener.start(bundle, monitor, startLevel);
+            return;
+        }
+
+        // whichever of the waiting thread and the starting thread clears
+        // this first is responsible for the outcome.
+        final AtomicBoolean waiting = new AtomicBoolean(true);
+        final long start = System.nanoTime();
+
+        final Future<Object> future = starter.submit(new Callable<Object>() {
+            public Object call() throws BundleException {
                 try {
+                    MonitoringListener.start(bundle, monitor, startLevel);
+                } catch (final BundleException ex) {
+                    abandonedStartFailed(bundle, waiting, monitor, startLevel, start, ex);
+                    throw ex;
+                } catch (final RuntimeException ex) {
+                    abandonedStartFailed(bundle, waiting, monitor, startLevel, start, ex);
+                    throw ex;
+                }
+                return null;
+            }
+        });
 
-                    final Bundle b = context.installBundle(location, null);
-                    final BundleStartLevel bsl = b.adapt(BundleStartLevel.class);
-                    bsl.setStartLevel(startLevel);
-                } catch (final Exception ex) {
-                    LOG.error("Auto-properties install for " + location + " failed.", ex);
+        try {
+            try {
+                future.get(budgetMillis, TimeUnit.MILLISECONDS);
+            } catch (@SuppressWarnings("unused") final TimeoutException ex) {
+                if (waiting.compareAndSet(true, false)) {
+                    LOG.warn("Abandoned waiting for {} to start after {} ms", bundle.getLocation(),
+                            Long.toString(budgetMillis));
+                    return;
                 }
+
+                // the start failed just as the budget ran out.
+                future.get();
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt(); // reset flag
+            throw new BundleException("Interrupted starting " + bundle.getLocation(), BundleException.UNSPECIFIED,
+                    ex);
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof BundleException) {
+                throw (BundleException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            throw new BundleException("Starting " + bundle.getLocation() + " failed", BundleException.UNSPECIFIED,
+                    cause);
         }
+    }
 
-        // Now loop through the auto-start bundles and start them.
-        for (final Entry<String, String> entry : configMap.entrySet()) {
-            final String lowerKey = entry.getKey().toLowerCase(Locale.ENGLISH);
-            if (lowerKey.startsWith(AUTO_START_PROP)) {
-                final StringTokenizer st = new StringTokenizer(entry.getValue(), "\" ", true);
+    private static void abandonedStartFailed(final Bundle bundle, final AtomicBoolean waiting,
+            final LaunchMonitor monitor, final int startLevel, final long start, final Exception failure) {
+        if (waiting.compareAndSet(true, false)) {
+            // the waiting thread reports it.
+            return;
+        }
+
+        LOG.error("Auto-deploy start failed for " + bundle.getLocation() + " after it was abandoned.", failure);
+        monitor.bundle(Operation.START, bundle.getLocation(), bundle, startLevel, start, System.nanoTime(), failure);
+    }
 
-                for (String location = nextLocation(st); location != null; location = nextLocation(st)) {
-                    // Installing twice just returns the same bundle.
+    /**
+     * @param configMap
+     *            Map of configuration properties.
+     * @param key
+     *            the property name
+     * @param defaultValue
+     *            the value to use if the property is missing or invalid
+     * @return the value of the property as a long
+     */
+    static long getLong(final Map<String, String> configMap, final String key, final long defaultValue) {
+        final String value = configMap.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException ex) {
+            LOG.warn("Invalid value for " + key + ".", ex);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param configMap
+     *            Map of configuration properties.
+     * @param key
+     *            the property name
+     * @param defaultValue
+     *            the value to use if the property is missing, invalid or not
+     *            positive
+     * @return the value of the property as a positive long
+     */
+    static long getPositiveLong(final Map<String, String> configMap, final String key, final long defaultValue) {
+        final long value = getLong(configMap, key, defaultValue);
+        if (value <= 0) {
+            LOG.warn("Invalid value {} for {}, using {}",
+                    new Object[] { Long.toString(value), key, Long.toString(defaultValue) });
+            return defaultValue;
+        }
+
+        return value;
+    }
+
+    /**
+     * <p>
+     * Installs the auto-install and auto-start bundles of the plan, then starts
+     * the auto-start bundles.
+     * </p>
+     */
+    private static void processAutoProperties(final DeploymentPlan plan, final BundleContext context,
+            final LaunchMonitor monitor, final Map<String, Future<File>> downloads, final Set<String> skipped) {
+        final List<Bundle> toStart = new ArrayList<Bundle>();
+
+        for (final BundleStep step : plan.bundles) {
+            if (skipped.contains(step.location)) {
+                continue;
+            }
+
+            final long start = System.nanoTime();
+            Bundle b = null;
+            try {
+                final Future<File> download = downloads.get(step.location);
+                if (download == null) {
+                    // Installing an installed bundle just returns it.
+                    b = context.installBundle(step.location, null);
+                } else {
+                    final InputStream stream = new FileInputStream(BundleFetcher.get(download));
                     try {
-                        final Bundle b = context.installBundle(location, null);
-                        if (b != null) {
-                            b.start();
+                        b = context.installBundle(step.location, stream);
+                    } finally {
+                        try {
+                            stream.close();
+                        } catch (@SuppressWarnings("unused") final IOException ex) {
+                            // ignored
                         }
-                    } catch (final Exception ex) {
-                        LOG.error("Auto-properties start for " + location + " failed.", ex);
                     }
                 }
+                final BundleStartLevel bsl = b.adapt(BundleStartLevel.class);
+                bsl.setStartLevel(step.startLevel);
+
+                monitor.bundle(Operation.INSTALL, step.location, b, step.startLevel, start, System.nanoTime(), null);
+
+                if (step.start) {
+                    toStart.add(b);
+                }
+            } catch (final Exception ex) {
+                LOG.error("Auto-properties install for " + step.location + " failed.", ex);
+
+                monitor.bundle(Operation.INSTALL, step.location, b, step.startLevel, start, System.nanoTime(), ex);
+            }
+        }
+
+        // Now loop through the auto-start bundles and start them.
+        for (final Bundle b : toStart) {
+            final long start = System.nanoTime();
+            try {
+                MonitoringListener.start(b, monitor, MonitoringListener.startLevel(b));
+            } catch (final Exception ex) {
+                LOG.error("Auto-properties start for " + b.getLocation() + " failed.", ex);
+
+                monitor.bundle(Operation.START, b.getLocation(), b, MonitoringListener.startLevel(b), start,
+                        System.nanoTime(), ex);
+            }
+        }
+    }
+
+    /**
+     * The auto properties share their prefix with other properties such as
+     * <tt>caffe.auto.start.budget</tt>, so only the prefix itself or the prefix
+     * followed by a start level is an auto property.
+     */
+    private static boolean isAutoProperty(final String lowerKey, final String prefix) {
+        if (lowerKey.equals(prefix)) {
+            return true;
+        }
+
+        if (!lowerKey.startsWith(prefix + ".") || lowerKey.length() == prefix.length() + 1) {
+            return false;
+        }
+
+        for (int i = prefix.length() + 1; i < lowerKey.length(); i++) {
+            if (!Character.isDigit(lowerKey.charAt(i))) {
+                return false;
             }
         }
+
+        return true;
     }
 
     private static String nextLocation(final StringTokenizer st) {
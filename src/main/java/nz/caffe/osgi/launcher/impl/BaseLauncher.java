@@ -19,23 +19,36 @@
 package nz.caffe.osgi.launcher.impl;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.ObjectName;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nz.caffe.osgi.launcher.LaunchMonitor;
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
 import nz.caffe.osgi.launcher.Launcher;
 import nz.caffe.osgi.launcher.LoadCallback;
 
@@ -80,6 +93,66 @@ public abstract class BaseLauncher implements Launcher {
      **/
     public static final String SYSTEM_PROPERTIES_PROP = "caffe.system.properties";
 
+    /**
+     * The property name used to specify a comma-delimited list of the
+     * symbolic names of bundles which are stopped when idle under memory
+     * pressure.
+     **/
+    public static final String EVICTION_BUNDLES_PROP = "caffe.eviction.bundles";
+
+    /**
+     * The property name used to specify how long, in milliseconds, a bundle
+     * must be idle before it may be evicted.
+     **/
+    public static final String EVICTION_IDLE_PROP = "caffe.eviction.idle";
+
+    /**
+     * The property name used to specify how often, in milliseconds, the memory
+     * usage and the idle bundles are checked.
+     **/
+    public static final String EVICTION_INTERVAL_PROP = "caffe.eviction.interval";
+
+    /**
+     * The property name used to specify the heap or class metadata usage, in
+     * percent, above which idle bundles are evicted.
+     **/
+    public static final String EVICTION_THRESHOLD_PROP = "caffe.eviction.threshold";
+
+    /**
+     * The property name used to specify a file to write the per-bundle class
+     * loading report to once the framework has started.
+     **/
+    public static final String FOOTPRINT_REPORT_PROP = "caffe.footprint.report";
+
+    /**
+     * The property name used to specify whether the launcher should register
+     * its MBean with the platform MBean server.
+     **/
+    public static final String JMX_ENABLED_PROP = "caffe.jmx.enabled";
+
+    /**
+     * The property name used to specify the object name of the launcher MBean.
+     **/
+    public static final String JMX_NAME_PROP = "caffe.jmx.name";
+
+    /**
+     * The property name used to specify a comma-delimited list of
+     * {@link LaunchMonitor} class names to instantiate and add to the
+     * launcher.
+     **/
+    public static final String LAUNCH_MONITORS_PROP = "caffe.launch.monitors";
+
+    /**
+     * The property name used to specify a file to write the startup trace to,
+     * in the Chrome trace event format, once the framework has started.
+     **/
+    public static final String TRACE_FILE_PROP = "caffe.trace.file";
+
+    private static final long DEFAULT_EVICTION_IDLE = 600000;
+    private static final long DEFAULT_EVICTION_INTERVAL = 10000;
+    private static final long DEFAULT_EVICTION_THRESHOLD = 85;
+    private static final long DEFAULT_SAMPLE_INTERVAL = 20;
+
     protected static void closeQuietly(final InputStream input) {
         try {
             if (input != null) {
@@ -262,6 +335,28 @@ public abstract class BaseLauncher implements Launcher {
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private final CompositeLaunchMonitor monitor = new CompositeLaunchMonitor();
+
+    private boolean monitorsConfigured;
+
+    private LauncherMetrics metrics;
+
+    private DeploymentPlan deployPlan;
+
+    private LoadCallback deployCallback;
+
+    private Properties deployInputs;
+
+    private boolean provisioning;
+
+    private volatile ReadinessTracker readiness;
+
+    private FrameworkEventStream eventStream;
+
+    private StartLevelRamp startLevelRamp;
+
+    private IdleBundleEvictor idleBundleEvictor;
+
     private Thread shutdownHook;
 
     /**
@@ -276,6 +371,46 @@ public abstract class BaseLauncher implements Launcher {
         this.loadCallback = loadCallback;
     }
 
+    /**
+     * Add a monitor which receives the timing events of the launch. Monitors
+     * should be added before launching.
+     *
+     * @param launchMonitor
+     *            the monitor
+     */
+    public final void addLaunchMonitor(final LaunchMonitor launchMonitor) {
+        this.monitor.add(launchMonitor);
+    }
+
+    /**
+     * Collect the launcher metrics, whether or not they are exposed through
+     * JMX. This must be called before launching.
+     *
+     * @return the metrics
+     */
+    public final synchronized LauncherMetrics enableMetrics() {
+        if (this.metrics == null) {
+            this.metrics = new LauncherMetrics(this);
+            addLaunchMonitor(this.metrics);
+        }
+
+        return this.metrics;
+    }
+
+    /**
+     * Publish the framework, bundle and service events to subscribers. This
+     * must be called before launching.
+     *
+     * @return the event stream
+     */
+    public final synchronized FrameworkEventStream enableEventStream() {
+        if (this.eventStream == null) {
+            this.eventStream = new FrameworkEventStream();
+        }
+
+        return this.eventStream;
+    }
+
     /**
      * The default value for the auto-deploy directory when none is specified.
      *
@@ -294,6 +429,30 @@ public abstract class BaseLauncher implements Launcher {
         return this.framework;
     }
 
+    /**
+     * @return the event stream or <tt>null</tt> if it has not been enabled
+     */
+    public final synchronized FrameworkEventStream getEventStream() {
+        return this.eventStream;
+    }
+
+    /**
+     * Returns the monitor which receives the timing events of this launcher.
+     *
+     * @return the launch monitor
+     */
+    public final LaunchMonitor getLaunchMonitor() {
+        return this.monitor;
+    }
+
+    /**
+     * @return the readiness tracker or <tt>null</tt> if the framework has not
+     *         been launched
+     */
+    public final ReadinessTracker getReadiness() {
+        return this.readiness;
+    }
+
     /**
      * @return the shutdownHook
      */
@@ -309,20 +468,38 @@ public abstract class BaseLauncher implements Launcher {
      * @throws Exception
      */
     public final void launch() throws Exception {
-        // Load system properties.
-        loadSystemProperties();
+        launch(createState(this.loadCallback));
+    }
 
-        // Read configuration properties.
-        Map<String, String> configProps = loadConfigProperties();
-        // If no configuration properties were found, then create
-        // an empty properties object.
-        if (configProps == null) {
-            this.logger.warn("No {} found", CONFIG_PROPERTIES_FILE_VALUE);
-            configProps = new HashMap<String, String>();
+    /**
+     * Launch the framework using state prepared by {@link #prepare()}, which
+     * may be shared with other launchers. The bundle and cache directories of
+     * this launcher still override the shared configuration, so each instance
+     * should be given its own cache directory.
+     *
+     * @param state
+     *            the shared launch state
+     * @throws Exception
+     *             if launching is unsuccessful
+     */
+    public final void launch(final SharedLaunchState state) throws Exception {
+        final Map<String, String> configProps = new HashMap<String, String>(state.getConfigProperties());
+
+        configureMonitors(configProps);
+
+        final String traceFile = configProps.get(TRACE_FILE_PROP);
+        StartupTimeline timeline = null;
+        if (traceFile != null) {
+            timeline = new StartupTimeline();
+            addLaunchMonitor(timeline);
         }
 
-        // Copy framework properties from the system properties.
-        copySystemProperties(configProps);
+        final boolean jmx = Boolean.parseBoolean(configProps.get(JMX_ENABLED_PROP));
+        if (jmx) {
+            enableMetrics();
+        }
+
+        this.monitor.phase(Phase.CONFIG_LOAD, null, state.getConfigLoadStart(), state.getConfigLoadEnd());
 
         // If there is a passed in bundle auto-deploy directory, then
         // that overwrites anything in the config file.
@@ -336,6 +513,9 @@ public abstract class BaseLauncher implements Launcher {
             configProps.put(Constants.FRAMEWORK_STORAGE, this.cacheDir);
         }
 
+        // the framework starts at level 1 and the ramp raises it from there.
+        this.startLevelRamp = StartLevelRamp.configure(configProps);
+
         final AtomicReference<Framework> fwkRef = new AtomicReference<Framework>();
 
         // If enabled, register a shutdown hook to make sure the framework is
@@ -359,19 +539,300 @@ public abstract class BaseLauncher implements Launcher {
             Runtime.getRuntime().addShutdownHook(this.shutdownHook);
         }
 
-        // Create an instance of the framework.
-        final FrameworkFactory factory = getFrameworkFactory();
-        final Framework fwk = factory.newFramework(configProps);
+        try {
+            final long initStart = System.nanoTime();
+
+            // Create an instance of the framework.
+            final Framework fwk = state.getFrameworkFactory().newFramework(configProps);
+
+            fwkRef.set(fwk);
+            // Initialise the framework, but don't start it yet.
+            fwk.init();
+
+            this.monitor.phase(Phase.FRAMEWORK_INIT, null, initStart, System.nanoTime());
+
+            if (this.metrics != null) {
+                this.metrics.attach(fwk);
+            }
+
+            if (jmx) {
+                String name = configProps.get(JMX_NAME_PROP);
+                if (name == null) {
+                    final String storage = configProps.get(Constants.FRAMEWORK_STORAGE);
+                    name = "nz.caffe.osgi.launcher:type=Launcher,name=" + ObjectName
+                            .quote(storage == null ? Integer.toHexString(System.identityHashCode(this)) : storage);
+                }
+
+                this.metrics.register(name);
+            }
+
+            if (this.monitor.isEnabled()) {
+                MonitoringListener.register(fwk.getBundleContext(), this.monitor);
+            }
+
+            if (this.eventStream != null) {
+                this.eventStream.register(fwk.getBundleContext());
+            }
+
+            this.readiness = ReadinessTracker.open(fwk.getBundleContext(), configProps, this.monitor);
+
+            if (this.startLevelRamp != null) {
+                this.startLevelRamp.register(fwk.getBundleContext());
+            }
+
+            // the tracker must be in place before any bundle classes load.
+            final String footprintReport = configProps.get(FOOTPRINT_REPORT_PROP);
+            if (footprintReport != null) {
+                BundleFootprintTracker.register(fwk.getBundleContext(), new File(footprintReport),
+                        (int) AutoProcessor.getLong(configProps, StartLevelRamp.RAMP_TARGET_PROPERTY, 0));
+            }
+
+            if (timeline != null) {
+                StartupTracer.register(fwk.getBundleContext(), timeline, new File(traceFile));
+            }
+
+            final long startBudget = AutoProcessor.getLong(configProps, AutoProcessor.AUTO_START_BUDGET_PROPERTY, 0);
+            if (startBudget > 0) {
+                StartWatchdog.register(fwk.getBundleContext(), startBudget, AutoProcessor.getPositiveLong(configProps,
+                        AutoProcessor.AUTO_START_SAMPLE_INTERVAL_PROPERTY, DEFAULT_SAMPLE_INTERVAL));
+            }
+
+            final String evictable = configProps.get(EVICTION_BUNDLES_PROP);
+            if (evictable != null) {
+                final Set<String> symbolicNames = new HashSet<String>();
+                final StringTokenizer st = new StringTokenizer(evictable, ",");
+                while (st.hasMoreTokens()) {
+                    final String symbolicName = st.nextToken().trim();
+                    if (symbolicName.length() > 0) {
+                        symbolicNames.add(symbolicName);
+                    }
+                }
+
+                if (!symbolicNames.isEmpty()) {
+                    this.idleBundleEvictor = new IdleBundleEvictor(symbolicNames,
+                            AutoProcessor.getLong(configProps, EVICTION_IDLE_PROP, DEFAULT_EVICTION_IDLE),
+                            (int) AutoProcessor.getLong(configProps, EVICTION_THRESHOLD_PROP,
+                                    DEFAULT_EVICTION_THRESHOLD),
+                            AutoProcessor.getPositiveLong(configProps, EVICTION_INTERVAL_PROP,
+                                    DEFAULT_EVICTION_INTERVAL));
+                    this.idleBundleEvictor.register(fwk.getBundleContext());
+                }
+            }
+
+            // A provisioned storage area already contains the deployed
+            // bundles, otherwise use the system bundle context to process the
+            // auto-deploy and auto-install/auto-start properties.
+            this.deployPlan = AutoProcessor.compile(configProps, fwk.getBundleContext(),
+                    getDefaultAutoDeployDirectory());
+            this.deployCallback = state.getLoadCallback();
+
+            this.logger.debug("Compiled deployment plan\n{}", this.deployPlan);
+
+            final String planFile = configProps.get(AutoProcessor.AUTO_DEPLOY_PLAN_PROPERTY);
+            if (planFile != null) {
+                writePlan(new File(planFile));
+            }
+
+            // fingerprinting reads every bundle which is not a plain file, so
+            // it is only done when there is a manifest to compare with or
+            // one is about to be written.
+            final String storage = configProps.get(Constants.FRAMEWORK_STORAGE);
+            if (storage != null && (this.provisioning || ProvisioningManifest.exists(new File(storage)))) {
+                this.deployInputs = ProvisioningManifest.inputs(configProps, this.deployPlan, this.deployCallback);
+            }
+
+            if (this.deployInputs != null
+                    && ProvisioningManifest.verify(new File(storage), fwk.getBundleContext(), this.deployInputs)) {
+                this.logger.info("Framework storage {} is provisioned, skipping auto-deploy", storage);
+            } else if (!AutoProcessor.process(this.deployPlan, fwk.getBundleContext(), this.deployCallback,
+                    this.monitor, false)) {
+                this.logger.warn("Auto-deploy was rolled back, launching with the previous bundles");
+            }
+
+            this.framework = fwk;
+        } catch (final Exception ex) {
+            abandonLaunch(fwkRef.get());
+            throw ex;
+        } catch (final Error err) {
+            abandonLaunch(fwkRef.get());
+            throw err;
+        }
+    }
+
+    /**
+     * Register the listeners of this launcher with a restarted framework.
+     * Listeners do not survive a restart, so this is called after each
+     * restart, before the framework is started.
+     *
+     * @param context
+     *            the system bundle context of the restarted framework
+     */
+    final void restarted(final BundleContext context) {
+        if (this.monitor.isEnabled()) {
+            MonitoringListener.register(context, this.monitor);
+        }
+
+        final FrameworkEventStream stream = getEventStream();
+        if (stream != null) {
+            stream.register(context);
+        }
+
+        if (this.readiness != null) {
+            this.readiness.reopen(context);
+        }
+
+        if (this.startLevelRamp != null) {
+            this.startLevelRamp.register(context);
+        }
+
+        if (this.idleBundleEvictor != null) {
+            this.idleBundleEvictor.register(context);
+        }
+    }
+
+    /**
+     * Release everything a failed launch has acquired. The shutdown hook
+     * references this launcher and the framework, so leaving it registered
+     * would pin the class loader of a failed web application deployment.
+     */
+    private void abandonLaunch(final Framework fwk) {
+        if (this.metrics != null) {
+            this.metrics.unregister();
+        }
+
+        if (this.shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            } catch (@SuppressWarnings("unused") final IllegalStateException ex) {
+                // shutdown already in progress
+            }
+            this.shutdownHook = null;
+        }
+
+        if (fwk != null) {
+            try {
+                fwk.stop();
+                fwk.waitForStop(0);
+            } catch (final Exception ex) {
+                this.logger.warn("Error stopping framework after failed launch", ex);
+            }
+        }
+    }
+
+    /**
+     * Run the auto-deploy processing again against the launched framework,
+     * using the deployment plan compiled at launch.
+     *
+     * @throws BundleException
+     *             if the bundles fail verification, or if the run failed and
+     *             was rolled back to the previous bundles
+     */
+    public final synchronized void redeploy() throws BundleException {
+        final Framework fwk = getFramework();
+
+        if (!AutoProcessor.process(this.deployPlan, fwk.getBundleContext(), this.deployCallback, this.monitor,
+                true)) {
+            throw new BundleException("Auto-deploy failed and was rolled back", BundleException.UNSPECIFIED);
+        }
+    }
+
+    private void writePlan(final File file) throws IOException {
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            this.deployPlan.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Launch the framework, deploy the configured bundles and stop it again,
+     * leaving a ready framework storage area. A later launch which opens that
+     * storage area skips the auto-deploy processing.
+     *
+     * @throws Exception
+     *             if provisioning is unsuccessful
+     */
+    public final void provision() throws Exception {
+        this.provisioning = true;
+        launch();
+
+        final Framework fwk = this.framework;
+        try {
+            final String storage = fwk.getBundleContext().getProperty(Constants.FRAMEWORK_STORAGE);
+            if (storage == null) {
+                throw new IllegalStateException(
+                        "Provisioning requires the " + Constants.FRAMEWORK_STORAGE + " property to be set");
+            }
+
+            ProvisioningManifest.write(new File(storage), fwk.getBundleContext(), this.deployInputs);
+
+            this.logger.info("Provisioned framework storage {}", storage);
+        } finally {
+            fwk.stop();
+            fwk.waitForStop(0);
+
+            if (this.shutdownHook != null) {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            }
+        }
+    }
+
+    /**
+     * Load the configuration and discover the framework factory once, so that
+     * the result can be used to launch several frameworks in the same JVM.
+     * Directory listings and bundle contents are staged in memory on first use
+     * and shared by every framework launched from the returned state.
+     *
+     * @return the shared launch state
+     * @throws Exception
+     *             if the configuration can not be loaded
+     */
+    public final SharedLaunchState prepare() throws Exception {
+        return createState(new StagingLoadCallback(this.loadCallback));
+    }
+
+    private SharedLaunchState createState(final LoadCallback callback) throws Exception {
+        final long start = System.nanoTime();
+
+        // Load system properties.
+        loadSystemProperties();
+
+        // Read configuration properties.
+        Map<String, String> configProps = loadConfigProperties();
+        // If no configuration properties were found, then create
+        // an empty properties object.
+        if (configProps == null) {
+            this.logger.warn("No {} found", CONFIG_PROPERTIES_FILE_VALUE);
+            configProps = new HashMap<String, String>();
+        }
+
+        // Copy framework properties from the system properties.
+        copySystemProperties(configProps);
 
-        fwkRef.set(fwk);
-        // Initialise the framework, but don't start it yet.
-        fwk.init();
+        return new SharedLaunchState(configProps, getFrameworkFactory(), callback, start, System.nanoTime());
+    }
 
-        // Use the system bundle context to process the auto-deploy
-        // and auto-install/auto-start properties.
-        AutoProcessor.process(configProps, fwk.getBundleContext(), getDefaultAutoDeployDirectory(), this.loadCallback);
+    private void configureMonitors(final Map<String, String> configProps) throws Exception {
+        if (this.monitorsConfigured) {
+            return;
+        }
+        this.monitorsConfigured = true;
 
-        this.framework = fwk;
+        final String monitors = configProps.get(LAUNCH_MONITORS_PROP);
+        if (monitors == null) {
+            return;
+        }
+
+        final StringTokenizer st = new StringTokenizer(monitors, ",");
+        while (st.hasMoreTokens()) {
+            final String className = st.nextToken().trim();
+            if (className.length() > 0) {
+                this.logger.debug("Adding launch monitor {}", className);
+
+                addLaunchMonitor((LaunchMonitor) Class.forName(className).newInstance());
+            }
+        }
     }
 
     /**
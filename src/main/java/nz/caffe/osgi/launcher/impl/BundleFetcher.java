@@ -0,0 +1,337 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads remote bundles into a local content-addressed cache so they are
+ * fetched once rather than by the framework on every fresh storage area. The
+ * cache holds each download under the SHA-1 of its contents in
+ * <tt>objects/</tt> and, for each URL, the digest and validators of its last
+ * download in <tt>index/</tt>. A cached URL is revalidated with a conditional
+ * request (<tt>If-None-Match</tt> / <tt>If-Modified-Since</tt>) and the
+ * cached copy is used if the server is unreachable. Objects are never removed.
+ */
+final class BundleFetcher {
+
+    private static final String ETAG = "etag";
+
+    private static final String LAST_MODIFIED = "lastModified";
+
+    private static final Logger LOG = LoggerFactory.getLogger(BundleFetcher.class);
+
+    private static final String SHA1 = "sha1";
+
+    private static final String URL_KEY = "url";
+
+    /**
+     * Wait for a download started by {@link #fetch(Collection)}.
+     *
+     * @param download
+     *            the download
+     * @return the cached file
+     * @throws Exception
+     *             if the download failed
+     */
+    static File get(final Future<File> download) throws Exception {
+        try {
+            return download.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt(); // reset flag
+            throw ex;
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * @param location
+     *            a bundle location
+     * @return <tt>true</tt> if the location is fetched over the network
+     */
+    static boolean isRemote(final String location) {
+        final String lower = location.toLowerCase(Locale.ENGLISH);
+
+        return lower.startsWith("http:") || lower.startsWith("https:") || lower.startsWith("ftp:");
+    }
+
+    private static String sha1(final byte[] bytes) throws IOException {
+        return hex(digest().digest(bytes));
+    }
+
+    static MessageDigest digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException ex) {
+            final IOException ioe = new IOException("SHA-1 is not available");
+            ioe.initCause(ex);
+            throw ioe;
+        }
+    }
+
+    static String hex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void close(final InputStream in) {
+        try {
+            in.close();
+        } catch (@SuppressWarnings("unused") final IOException ex) {
+            // ignored
+        }
+    }
+
+    private final int connectTimeout;
+
+    private final File index;
+
+    private final File objects;
+
+    private final int readTimeout;
+
+    private final int threads;
+
+    /**
+     * @param cacheDir
+     *            the cache directory
+     * @param threads
+     *            the maximum number of concurrent downloads
+     * @param connectTimeout
+     *            the connect timeout in milliseconds
+     * @param readTimeout
+     *            the read timeout in milliseconds
+     */
+    BundleFetcher(final File cacheDir, final int threads, final long connectTimeout, final long readTimeout) {
+        super();
+        this.index = new File(cacheDir, "index");
+        this.objects = new File(cacheDir, "objects");
+        this.threads = Math.max(1, threads);
+        this.connectTimeout = (int) Math.min(Integer.MAX_VALUE, connectTimeout);
+        this.readTimeout = (int) Math.min(Integer.MAX_VALUE, readTimeout);
+    }
+
+    /**
+     * Start downloading the given locations in parallel.
+     *
+     * @param locations
+     *            the locations
+     * @return the downloads by location
+     */
+    Map<String, Future<File>> fetch(final Collection<String> locations) {
+        final Map<String, Future<File>> downloads = new LinkedHashMap<String, Future<File>>();
+        if (locations.isEmpty()) {
+            return downloads;
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.threads, locations.size()),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "Auto-install Fetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        try {
+            for (final String location : locations) {
+                downloads.put(location, pool.submit(new Callable<File>() {
+                    public File call() throws IOException {
+                        return fetch(location);
+                    }
+                }));
+            }
+        } finally {
+            // the submitted downloads still run to completion.
+            pool.shutdown();
+        }
+
+        return downloads;
+    }
+
+    /**
+     * Fetch a location into the cache, revalidating a cached copy.
+     *
+     * @param location
+     *            the location
+     * @return the cached file
+     * @throws IOException
+     *             if the location can not be fetched and is not cached
+     */
+    File fetch(final String location) throws IOException {
+        if (!this.objects.isDirectory() && !this.objects.mkdirs() && !this.objects.isDirectory()) {
+            throw new IOException("Unable to create " + this.objects);
+        }
+        if (!this.index.isDirectory() && !this.index.mkdirs() && !this.index.isDirectory()) {
+            throw new IOException("Unable to create " + this.index);
+        }
+
+        final File entryFile = new File(this.index, sha1(location.getBytes("UTF-8")) + ".properties");
+        final Properties entry = new Properties();
+        if (entryFile.isFile()) {
+            final InputStream in = new FileInputStream(entryFile);
+            try {
+                entry.load(in);
+            } finally {
+                close(in);
+            }
+        }
+
+        final String cachedSha1 = entry.getProperty(SHA1);
+        final File cached = (cachedSha1 == null) ? null : new File(this.objects, cachedSha1);
+        final boolean haveCached = cached != null && cached.isFile();
+
+        try {
+            final URLConnection connection = new URL(location).openConnection();
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(this.connectTimeout);
+            connection.setReadTimeout(this.readTimeout);
+
+            if (haveCached) {
+                final String etag = entry.getProperty(ETAG);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+
+                final String lastModified = entry.getProperty(LAST_MODIFIED);
+                if (lastModified != null) {
+                    connection.setIfModifiedSince(Long.parseLong(lastModified));
+                }
+
+                if (connection instanceof HttpURLConnection && ((HttpURLConnection) connection)
+                        .getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    LOG.debug("Cached copy of {} is current", location);
+                    return cached;
+                }
+            }
+
+            final File object = download(connection);
+
+            entry.setProperty(URL_KEY, location);
+            entry.setProperty(SHA1, object.getName());
+            entry.remove(ETAG);
+            entry.remove(LAST_MODIFIED);
+
+            final String etag = connection.getHeaderField("ETag");
+            if (etag != null) {
+                entry.setProperty(ETAG, etag);
+            }
+            if (connection.getLastModified() > 0) {
+                entry.setProperty(LAST_MODIFIED, Long.toString(connection.getLastModified()));
+            }
+
+            store(entry, entryFile);
+
+            LOG.debug("Fetched {} into {}", location, object);
+
+            return object;
+        } catch (final IOException ex) {
+            if (!haveCached) {
+                throw ex;
+            }
+
+            LOG.warn("Unable to revalidate " + location + ", using the cached copy", ex);
+            return cached;
+        }
+    }
+
+    private File download(final URLConnection connection) throws IOException {
+        final MessageDigest digest = digest();
+        final File tmp = File.createTempFile("fetch", ".tmp", this.objects);
+
+        try {
+            final InputStream in = new DigestInputStream(connection.getInputStream(), digest);
+            try {
+                final OutputStream out = new FileOutputStream(tmp);
+                try {
+                    final byte[] buffer = new byte[8192];
+                    for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                close(in);
+            }
+
+            final File object = new File(this.objects, hex(digest.digest()));
+
+            // identical contents are already cached under the same name.
+            if (!object.isFile() && !tmp.renameTo(object) && !object.isFile()) {
+                throw new IOException("Unable to move " + tmp + " to " + object);
+            }
+
+            return object;
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOG.debug("Unable to delete {}", tmp);
+            }
+        }
+    }
+
+    private void store(final Properties entry, final File entryFile) throws IOException {
+        final File tmp = File.createTempFile("index", ".tmp", this.index);
+
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            entry.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        // replace the entry in one step where the platform allows it.
+        if (!tmp.renameTo(entryFile)) {
+            if (!entryFile.delete() || !tmp.renameTo(entryFile)) {
+                tmp.delete();
+                throw new IOException("Unable to write " + entryFile);
+            }
+        }
+    }
+}
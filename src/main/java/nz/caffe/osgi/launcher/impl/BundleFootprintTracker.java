@@ -0,0 +1,214 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.hooks.weaving.WovenClassListener;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records, for each bundle, how many classes it defined, how long the
+ * framework spent defining them and the size of their class files, and
+ * writes a report once the framework has started, which with a start level
+ * ramp is once the ramp has reached its target. The class file size is an
+ * approximation of the memory the classes retain.
+ */
+final class BundleFootprintTracker implements WovenClassListener, FrameworkListener {
+
+    private static final class Footprint {
+        final Bundle bundle;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong classes = new AtomicLong();
+        final AtomicLong defineNanos = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        Footprint(final Bundle bundle) {
+            super();
+            this.bundle = bundle;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(BundleFootprintTracker.class);
+
+    /**
+     * Register a new tracker with the given system bundle context.
+     *
+     * @param context
+     *            the system bundle context
+     * @param report
+     *            the file to write the report to
+     * @param target
+     *            the start level the framework has to reach before the report
+     *            is written
+     */
+    static void register(final BundleContext context, final File report, final int target) {
+        final BundleFootprintTracker tracker = new BundleFootprintTracker(report, target,
+                context.getBundle().adapt(FrameworkStartLevel.class));
+
+        context.registerService(WovenClassListener.class, tracker, null);
+        context.addFrameworkListener(tracker);
+    }
+
+    /**
+     * Defining a class may load and define others on the same thread first,
+     * so the start times are kept per class.
+     */
+    private final ThreadLocal<Map<WovenClass, Long>> defineStart = new ThreadLocal<Map<WovenClass, Long>>() {
+        @Override
+        protected Map<WovenClass, Long> initialValue() {
+            return new IdentityHashMap<WovenClass, Long>();
+        }
+    };
+
+    private final ConcurrentMap<Long, Footprint> footprints = new ConcurrentHashMap<Long, Footprint>();
+
+    private final FrameworkStartLevel fsl;
+
+    private final File report;
+
+    private final int target;
+
+    private final AtomicBoolean written = new AtomicBoolean();
+
+    /**
+     * @param report
+     * @param target
+     * @param fsl
+     */
+    private BundleFootprintTracker(final File report, final int target, final FrameworkStartLevel fsl) {
+        super();
+        this.report = report;
+        this.target = target;
+        this.fsl = fsl;
+    }
+
+    public void frameworkEvent(final FrameworkEvent event) {
+        // a start level ramp raises the level after the framework started.
+        if ((event.getType() != FrameworkEvent.STARTED && event.getType() != FrameworkEvent.STARTLEVEL_CHANGED)
+                || this.fsl.getStartLevel() < this.target || !this.written.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            write();
+
+            LOG.info("Wrote bundle footprint report to {}", this.report);
+        } catch (final IOException ex) {
+            LOG.warn("Unable to write bundle footprint report to " + this.report, ex);
+        }
+    }
+
+    public void modified(final WovenClass wovenClass) {
+        switch (wovenClass.getState()) {
+        case WovenClass.TRANSFORMED:
+            // defining the class follows on the same thread.
+            this.defineStart.get().put(wovenClass, Long.valueOf(System.nanoTime()));
+            break;
+        case WovenClass.DEFINED:
+            final Long start = this.defineStart.get().remove(wovenClass);
+            final Footprint footprint = footprint(wovenClass.getBundleWiring().getBundle());
+
+            footprint.classes.incrementAndGet();
+            if (start != null) {
+                footprint.defineNanos.addAndGet(System.nanoTime() - start.longValue());
+            }
+            footprint.bytes.addAndGet(wovenClass.getBytes().length);
+            break;
+        case WovenClass.TRANSFORMING_FAILED:
+        case WovenClass.DEFINE_FAILED:
+            this.defineStart.get().remove(wovenClass);
+            footprint(wovenClass.getBundleWiring().getBundle()).failures.incrementAndGet();
+            break;
+        default:
+            break;
+        }
+    }
+
+    private Footprint footprint(final Bundle bundle) {
+        final Long id = Long.valueOf(bundle.getBundleId());
+
+        Footprint footprint = this.footprints.get(id);
+        if (footprint == null) {
+            footprint = new Footprint(bundle);
+
+            final Footprint existing = this.footprints.putIfAbsent(id, footprint);
+            if (existing != null) {
+                footprint = existing;
+            }
+        }
+
+        return footprint;
+    }
+
+    private void write() throws IOException {
+        final List<Footprint> sorted = new ArrayList<Footprint>(this.footprints.values());
+        Collections.sort(sorted, new Comparator<Footprint>() {
+            public int compare(final Footprint o1, final Footprint o2) {
+                final long d1 = o1.defineNanos.get();
+                final long d2 = o2.defineNanos.get();
+                return (d1 > d2) ? -1 : ((d1 == d2) ? 0 : 1);
+            }
+        });
+
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(this.report), "UTF-8"));
+        try {
+            out.println("# classes loaded by the JVM: "
+                    + ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+            out.println("# heap used: " + heap.getUsed() + " bytes");
+            out.println("# bundle id, symbolic name, classes defined, define time (ms), class bytes, failed defines");
+
+            for (final Footprint footprint : sorted) {
+                out.println(footprint.bundle.getBundleId() + "," + footprint.bundle.getSymbolicName() + ","
+                        + footprint.classes.get() + ","
+                        + TimeUnit.NANOSECONDS.toMillis(footprint.defineNanos.get()) + ","
+                        + footprint.bytes.get() + "," + footprint.failures.get());
+            }
+        } finally {
+            out.close();
+        }
+
+        if (out.checkError()) {
+            throw new IOException("Error writing " + this.report);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LoadCallback;
+
+/**
+ * Checks bundles before any of them is installed: each must have a valid OSGi
+ * manifest, the digests of a signed bundle must match its contents and every
+ * entry of a signed bundle must be signed. Optionally, every bundle must be
+ * signed. No two bundles may have the same symbolic name and version. The
+ * bundles are read in parallel and all the problems are collected into a
+ * single report.
+ */
+final class BundleVerifier {
+
+    private static final class Result {
+        final String path;
+        final List<String> problems = new ArrayList<String>();
+        String symbolicName;
+        Version version;
+
+        Result(final String path) {
+            super();
+            this.path = path;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(BundleVerifier.class);
+
+    /**
+     * Verify the given bundles.
+     *
+     * @param paths
+     *            the bundle paths
+     * @param callback
+     *            the callback to read the bundles with
+     * @param requireSigned
+     *            whether every bundle must be signed
+     * @throws BundleException
+     *             with the report of all the problems found
+     */
+    static void verify(final List<String> paths, final LoadCallback callback, final boolean requireSigned)
+            throws BundleException {
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(paths.size(), Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "Auto-deploy Verify");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        final List<Result> results = new ArrayList<Result>(paths.size());
+        try {
+            final List<Future<Result>> futures = new ArrayList<Future<Result>>(paths.size());
+            for (final String path : paths) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    public Result call() {
+                        return verify(path, callback, requireSigned);
+                    }
+                }));
+            }
+
+            for (final Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt(); // reset flag
+            throw new BundleException("Interrupted verifying bundles", BundleException.UNSPECIFIED, ex);
+        } catch (final ExecutionException ex) {
+            throw new BundleException("Verifying bundles failed", BundleException.UNSPECIFIED, ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // the same symbolic name and version must not be deployed twice.
+        final Map<String, String> identities = new LinkedHashMap<String, String>();
+        for (final Result result : results) {
+            if (result.symbolicName != null && result.version != null) {
+                final String identity = result.symbolicName + ";" + result.version;
+                final String first = identities.get(identity);
+                if (first == null) {
+                    identities.put(identity, result.path);
+                } else {
+                    result.problems.add("same symbolic name and version as " + first);
+                }
+            }
+        }
+
+        final StringBuilder report = new StringBuilder();
+        int failed = 0;
+        for (final Result result : results) {
+            if (!result.problems.isEmpty()) {
+                failed++;
+                report.append("\n").append(result.path).append(":");
+                for (final String problem : result.problems) {
+                    report.append("\n    ").append(problem);
+                }
+            }
+        }
+
+        if (failed > 0) {
+            throw new BundleException(failed + " of " + results.size() + " bundles failed verification:" + report,
+                    BundleException.UNSPECIFIED);
+        }
+    }
+
+    private static Result verify(final String path, final LoadCallback callback, final boolean requireSigned) {
+        final Result result = new Result(path);
+
+        InputStream in = null;
+        try {
+            in = callback.openStream(path);
+
+            // reading every entry makes the stream check the digests of a
+            // signed jar, throwing a SecurityException on a mismatch.
+            final JarInputStream jar = new JarInputStream(in, true);
+            Manifest manifest = jar.getManifest();
+
+            // the stream only finds the manifest, and so can only check the
+            // signature, if it is one of the first entries.
+            final boolean verifiable = manifest != null;
+
+            final byte[] buffer = new byte[8192];
+            int unsigned = 0;
+            boolean signed = false;
+            for (JarEntry entry = jar.getNextJarEntry(); entry != null; entry = jar.getNextJarEntry()) {
+                if (manifest == null && JarFile.MANIFEST_NAME.equalsIgnoreCase(entry.getName())) {
+                    manifest = new Manifest(jar);
+                    continue;
+                }
+
+                while (jar.read(buffer) != -1) {
+                    // only read to verify
+                }
+
+                final String name = entry.getName().toUpperCase(Locale.ENGLISH);
+                if (name.startsWith("META-INF/")) {
+                    signed |= name.endsWith(".SF");
+                } else if (!entry.isDirectory() && entry.getCodeSigners() == null) {
+                    unsigned++;
+                }
+            }
+
+            if (manifest == null) {
+                result.problems.add("no manifest");
+            } else {
+                verifyManifest(manifest.getMainAttributes(), result);
+            }
+
+            if (signed && !verifiable) {
+                LOG.warn("Unable to check the signature of {}, its manifest is not one of the first entries", path);
+            } else if (signed && unsigned > 0) {
+                result.problems.add(unsigned + " entries are not signed");
+            } else if (!signed && requireSigned) {
+                result.problems.add("not signed");
+            }
+        } catch (final SecurityException ex) {
+            result.problems.add("invalid signature: " + ex.getMessage());
+        } catch (final IOException ex) {
+            result.problems.add("unreadable: " + ex);
+        } catch (final BundleException ex) {
+            result.problems.add("unreadable: " + ex.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (@SuppressWarnings("unused") final IOException ex) {
+                    // ignored
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void verifyManifest(final Attributes headers, final Result result) {
+        final String manifestVersion = headers.getValue(Constants.BUNDLE_MANIFESTVERSION);
+        final String symbolicName = ManifestHeader.firstPath(headers.getValue(Constants.BUNDLE_SYMBOLICNAME));
+
+        if (manifestVersion != null && !"2".equals(manifestVersion.trim())) {
+            result.problems.add("unsupported " + Constants.BUNDLE_MANIFESTVERSION + " " + manifestVersion);
+        }
+        if (symbolicName == null) {
+            if ("2".equals(manifestVersion == null ? null : manifestVersion.trim())) {
+                result.problems.add("no " + Constants.BUNDLE_SYMBOLICNAME);
+            }
+        } else {
+            result.symbolicName = symbolicName;
+        }
+
+        try {
+            result.version = Version.parseVersion(headers.getValue(Constants.BUNDLE_VERSION));
+        } catch (final IllegalArgumentException ex) {
+            result.problems.add("invalid " + Constants.BUNDLE_VERSION + ": " + ex.getMessage());
+        }
+
+        // the version attributes of the package headers must parse.
+        verifyVersions(headers, Constants.EXPORT_PACKAGE, Constants.VERSION_ATTRIBUTE, false, result);
+        verifyVersions(headers, Constants.IMPORT_PACKAGE, Constants.VERSION_ATTRIBUTE, true, result);
+        verifyVersions(headers, Constants.REQUIRE_BUNDLE, Constants.BUNDLE_VERSION_ATTRIBUTE, true, result);
+    }
+
+    private static void verifyVersions(final Attributes headers, final String header, final String attribute,
+            final boolean range, final Result result) {
+        for (final ManifestHeader.Clause clause : ManifestHeader.parse(headers.getValue(header))) {
+            final String value = clause.attributes.get(attribute);
+            if (value == null) {
+                continue;
+            }
+
+            try {
+                if (range) {
+                    new VersionRange(value);
+                } else {
+                    Version.parseVersion(value);
+                }
+            } catch (final IllegalArgumentException ex) {
+                result.problems.add("invalid " + attribute + " in " + header + " " + clause.paths + ": "
+                        + ex.getMessage());
+            }
+        }
+    }
+}
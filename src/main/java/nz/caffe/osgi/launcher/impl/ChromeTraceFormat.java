@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import nz.caffe.osgi.launcher.impl.StartupTimeline.Span;
+
+/**
+ * Writes a startup timeline in the Chrome trace event format, which can be
+ * loaded into <tt>chrome://tracing</tt> or any compatible trace viewer. Each
+ * span becomes a complete event on the thread which performed it and each mark
+ * becomes a global instant event.
+ */
+public final class ChromeTraceFormat {
+
+    static String quote(final String value) {
+        final StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                quoted.append("\\\"");
+                break;
+            case '\\':
+                quoted.append("\\\\");
+                break;
+            case '\n':
+                quoted.append("\\n");
+                break;
+            case '\r':
+                quoted.append("\\r");
+                break;
+            case '\t':
+                quoted.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    final String hex = Integer.toHexString(c);
+                    quoted.append("\\u0000", 0, 6 - hex.length()).append(hex);
+                } else {
+                    quoted.append(c);
+                }
+                break;
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String micros(final long nanos) {
+        return Long.toString(nanos / 1000L);
+    }
+
+    /**
+     * Write the timeline.
+     *
+     * @param timeline
+     *            the timeline to write
+     * @param out
+     *            the writer to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    public static void write(final StartupTimeline timeline, final Writer out) throws IOException {
+        final List<Span> spans = timeline.getSpans();
+
+        // phases reported before the timeline existed start before its origin.
+        long origin = timeline.getOrigin();
+        if (!spans.isEmpty() && spans.get(0).start - origin < 0) {
+            origin = spans.get(0).start;
+        }
+
+        final Map<Long, String> threads = new LinkedHashMap<Long, String>();
+
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+        boolean first = true;
+        for (final Span span : spans) {
+            threads.put(Long.valueOf(span.threadId), span.threadName);
+
+            out.write(first ? "\n" : ",\n");
+            first = false;
+
+            out.write("{\"name\":" + quote(span.name) + ",\"cat\":" + quote(span.category));
+            if ("mark".equals(span.category)) {
+                out.write(",\"ph\":\"i\",\"s\":\"g\"");
+            } else {
+                out.write(",\"ph\":\"X\",\"dur\":" + micros(span.end - span.start));
+            }
+            out.write(",\"ts\":" + micros(span.start - origin) + ",\"pid\":1,\"tid\":" + span.threadId);
+            if (span.detail != null) {
+                out.write(",\"args\":{\"detail\":" + quote(span.detail) + "}");
+            }
+            out.write("}");
+        }
+
+        for (final Entry<Long, String> thread : threads.entrySet()) {
+            out.write(first ? "\n" : ",\n");
+            first = false;
+
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey()
+                    + ",\"args\":{\"name\":" + quote(thread.getValue()) + "}}");
+        }
+
+        out.write("\n]}\n");
+        out.flush();
+    }
+}
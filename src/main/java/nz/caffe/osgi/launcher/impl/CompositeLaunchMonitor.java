@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LaunchMonitor;
+
+/**
+ * Forwards events to any number of monitors. With no monitors added, every
+ * call returns immediately.
+ */
+public final class CompositeLaunchMonitor implements LaunchMonitor {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final List<LaunchMonitor> monitors = new CopyOnWriteArrayList<LaunchMonitor>();
+
+    /**
+     * @param monitor
+     *            the monitor to add
+     */
+    public void add(final LaunchMonitor monitor) {
+        this.monitors.add(monitor);
+    }
+
+    /**
+     * @return whether any monitors have been added
+     */
+    public boolean isEnabled() {
+        return !this.monitors.isEmpty();
+    }
+
+    /**
+     * @param monitor
+     *            the monitor to remove
+     */
+    public void remove(final LaunchMonitor monitor) {
+        this.monitors.remove(monitor);
+    }
+
+    public void bundle(final Operation operation, final String location, final Bundle bundle, final int startLevel,
+            final long startNanos, final long endNanos, final Throwable failure) {
+        for (final LaunchMonitor monitor : this.monitors) {
+            try {
+                monitor.bundle(operation, location, bundle, startLevel, startNanos, endNanos, failure);
+            } catch (final RuntimeException ex) {
+                this.logger.warn("Launch monitor " + monitor + " failed", ex);
+            }
+        }
+    }
+
+    public void phase(final Phase phase, final String detail, final long startNanos, final long endNanos) {
+        for (final LaunchMonitor monitor : this.monitors) {
+            try {
+                monitor.phase(phase, detail, startNanos, endNanos);
+            } catch (final RuntimeException ex) {
+                this.logger.warn("Launch monitor " + monitor + " failed", ex);
+            }
+        }
+    }
+}
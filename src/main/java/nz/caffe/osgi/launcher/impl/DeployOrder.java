@@ -0,0 +1,275 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LoadCallback;
+import nz.caffe.osgi.launcher.impl.ManifestHeader.Clause;
+
+/**
+ * Orders bundles so that each comes after the bundles providing the packages,
+ * capabilities, required bundles and fragments it needs, letting the
+ * framework resolve most of them on the first attempt. Bundles which do not
+ * depend on each other keep their original order and dependency cycles are
+ * broken by taking the first remaining bundle in the original order, so the
+ * result is deterministic.
+ */
+final class DeployOrder {
+
+    private static final class Node {
+        final Set<Integer> dependencies = new HashSet<Integer>();
+        final Set<Integer> dependents = new HashSet<Integer>();
+        Attributes headers;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeployOrder.class);
+
+    private static final Set<String> IGNORED_NAMESPACES = new HashSet<String>();
+
+    static {
+        // provided by the framework, not by other bundles.
+        IGNORED_NAMESPACES.add("osgi.ee");
+        IGNORED_NAMESPACES.add("osgi.native");
+    }
+
+    /**
+     * Sort the given bundles.
+     *
+     * @param paths
+     *            the bundle paths in their original order
+     * @param callback
+     *            the callback to read the bundles with
+     * @return the bundle paths in dependency order
+     */
+    static List<String> sort(final List<String> paths, final LoadCallback callback) {
+        final List<Node> nodes = new ArrayList<Node>(paths.size());
+        for (final String path : paths) {
+            final Node node = new Node();
+            node.headers = readHeaders(path, callback);
+            nodes.add(node);
+        }
+
+        // index the providers by what they provide.
+        final Map<String, Set<Integer>> packages = new HashMap<String, Set<Integer>>();
+        final Map<String, Set<Integer>> symbolicNames = new HashMap<String, Set<Integer>>();
+        final Map<String, List<Integer>> capabilityProviders = new HashMap<String, List<Integer>>();
+        final Map<String, List<Map<String, String>>> capabilities = new HashMap<String, List<Map<String, String>>>();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            final Attributes headers = nodes.get(i).headers;
+            if (headers == null) {
+                continue;
+            }
+
+            final Integer index = Integer.valueOf(i);
+
+            for (final Clause clause : ManifestHeader.parse(headers.getValue(Constants.EXPORT_PACKAGE))) {
+                for (final String pkg : clause.paths) {
+                    index(packages, pkg, index);
+                }
+            }
+
+            final String symbolicName = ManifestHeader.firstPath(headers.getValue(Constants.BUNDLE_SYMBOLICNAME));
+            if (symbolicName != null) {
+                index(symbolicNames, symbolicName, index);
+            }
+
+            for (final Clause clause : ManifestHeader.parse(headers.getValue(Constants.PROVIDE_CAPABILITY))) {
+                for (final String namespace : clause.paths) {
+                    List<Integer> providers = capabilityProviders.get(namespace);
+                    List<Map<String, String>> attributes = capabilities.get(namespace);
+                    if (providers == null) {
+                        providers = new ArrayList<Integer>();
+                        attributes = new ArrayList<Map<String, String>>();
+                        capabilityProviders.put(namespace, providers);
+                        capabilities.put(namespace, attributes);
+                    }
+
+                    final Map<String, String> attrs = new HashMap<String, String>(clause.attributes);
+                    attrs.put(namespace, namespace);
+                    providers.add(index);
+                    attributes.add(attrs);
+                }
+            }
+        }
+
+        // link each bundle to its providers.
+        for (int i = 0; i < nodes.size(); i++) {
+            final Attributes headers = nodes.get(i).headers;
+            if (headers == null) {
+                continue;
+            }
+
+            for (final Clause clause : ManifestHeader.parse(headers.getValue(Constants.IMPORT_PACKAGE))) {
+                for (final String pkg : clause.paths) {
+                    link(nodes, i, packages.get(pkg));
+                }
+            }
+
+            for (final Clause clause : ManifestHeader.parse(headers.getValue(Constants.REQUIRE_BUNDLE))) {
+                for (final String name : clause.paths) {
+                    link(nodes, i, symbolicNames.get(name));
+                }
+            }
+
+            for (final Clause clause : ManifestHeader.parse(headers.getValue(Constants.REQUIRE_CAPABILITY))) {
+                for (final String namespace : clause.paths) {
+                    if (!IGNORED_NAMESPACES.contains(namespace)) {
+                        link(nodes, i, matching(capabilityProviders.get(namespace), capabilities.get(namespace),
+                                clause.directives.get(Constants.FILTER_DIRECTIVE)));
+                    }
+                }
+            }
+
+            // fragments come before their host so they attach when it
+            // resolves.
+            final String host = ManifestHeader.firstPath(headers.getValue(Constants.FRAGMENT_HOST));
+            final Set<Integer> hosts = (host == null) ? null : symbolicNames.get(host);
+            if (hosts != null) {
+                for (final Integer hostIndex : hosts) {
+                    link(nodes, hostIndex.intValue(), Collections.singleton(Integer.valueOf(i)));
+                }
+            }
+        }
+
+        return topologicalSort(paths, nodes);
+    }
+
+    private static void index(final Map<String, Set<Integer>> map, final String key, final Integer index) {
+        Set<Integer> indexes = map.get(key);
+        if (indexes == null) {
+            indexes = new HashSet<Integer>();
+            map.put(key, indexes);
+        }
+        indexes.add(index);
+    }
+
+    private static void link(final List<Node> nodes, final int dependent, final Set<Integer> providers) {
+        if (providers == null) {
+            return;
+        }
+
+        for (final Integer provider : providers) {
+            // bundles often import the packages they export.
+            if (provider.intValue() != dependent) {
+                nodes.get(dependent).dependencies.add(provider);
+                nodes.get(provider.intValue()).dependents.add(Integer.valueOf(dependent));
+            }
+        }
+    }
+
+    private static Set<Integer> matching(final List<Integer> providers, final List<Map<String, String>> attributes,
+            final String filter) {
+        if (providers == null) {
+            return null;
+        }
+
+        Filter parsed = null;
+        if (filter != null) {
+            try {
+                parsed = FrameworkUtil.createFilter(filter);
+            } catch (final InvalidSyntaxException ex) {
+                LOG.debug("Ignoring invalid requirement filter " + filter, ex);
+            }
+        }
+
+        final Set<Integer> matches = new HashSet<Integer>();
+        for (int i = 0; i < providers.size(); i++) {
+            // attribute values are compared as strings, so a typed
+            // attribute may match less strictly than in the framework.
+            if (parsed == null || parsed.matches(attributes.get(i))) {
+                matches.add(providers.get(i));
+            }
+        }
+        return matches;
+    }
+
+    private static Attributes readHeaders(final String path, final LoadCallback callback) {
+        InputStream in = null;
+        try {
+            in = callback.openStream(path);
+            return ManifestHeader.read(in);
+        } catch (final IOException ex) {
+            LOG.debug("Unable to read the manifest of " + path, ex);
+            return null;
+        } catch (final BundleException ex) {
+            LOG.debug("Unable to read the manifest of " + path, ex);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (@SuppressWarnings("unused") final IOException ex) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private static List<String> topologicalSort(final List<String> paths, final List<Node> nodes) {
+        final int[] remaining = new int[nodes.size()];
+        final TreeSet<Integer> ready = new TreeSet<Integer>();
+        final TreeSet<Integer> blocked = new TreeSet<Integer>();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            remaining[i] = nodes.get(i).dependencies.size();
+            (remaining[i] == 0 ? ready : blocked).add(Integer.valueOf(i));
+        }
+
+        final List<String> sorted = new ArrayList<String>(paths.size());
+        while (!ready.isEmpty() || !blocked.isEmpty()) {
+            final Integer next;
+            if (ready.isEmpty()) {
+                next = blocked.first();
+                LOG.debug("Breaking dependency cycle at {}", paths.get(next.intValue()));
+            } else {
+                next = ready.first();
+            }
+
+            ready.remove(next);
+            blocked.remove(next);
+            sorted.add(paths.get(next.intValue()));
+
+            for (final Integer dependent : nodes.get(next.intValue()).dependents) {
+                if (blocked.contains(dependent) && --remaining[dependent.intValue()] == 0) {
+                    blocked.remove(dependent);
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        return sorted;
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LoadCallback;
+
+/**
+ * Records the changes an auto-deploy run makes so they can be undone. The
+ * history directory holds the contents of the last successfully deployed
+ * bundles under the SHA-1 of their contents in <tt>objects/</tt> and the
+ * digest for each location in <tt>deployed.properties</tt>. A rollback
+ * uninstalls the bundles installed by the run, updates the updated bundles
+ * and reinstalls the uninstalled bundles from the history, then refreshes
+ * all of them in one batch.
+ */
+final class DeployTransaction {
+
+    private static final class Removed {
+        final Bundle bundle;
+        final boolean started;
+        final int startLevel;
+
+        Removed(final Bundle bundle) {
+            super();
+            this.bundle = bundle;
+            final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+            this.startLevel = bsl.getStartLevel();
+            this.started = bsl.isPersistentlyStarted();
+        }
+    }
+
+    private static final String INDEX = "deployed.properties";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeployTransaction.class);
+
+    private final Set<String> changed = new HashSet<String>();
+
+    private final Map<String, String> deployed = new LinkedHashMap<String, String>();
+
+    private final Properties index = new Properties();
+
+    private final File indexFile;
+
+    private final List<Bundle> installed = new ArrayList<Bundle>();
+
+    private final File objects;
+
+    private final List<Removed> uninstalled = new ArrayList<Removed>();
+
+    private final Map<Bundle, Boolean> updated = new LinkedHashMap<Bundle, Boolean>();
+
+    /**
+     * @param historyDir
+     *            the history directory
+     * @throws IOException
+     *             if the history can not be read
+     */
+    DeployTransaction(final File historyDir) throws IOException {
+        super();
+        this.objects = new File(historyDir, "objects");
+        this.indexFile = new File(historyDir, INDEX);
+
+        if (!this.objects.isDirectory() && !this.objects.mkdirs() && !this.objects.isDirectory()) {
+            throw new IOException("Unable to create " + this.objects);
+        }
+
+        if (this.indexFile.isFile()) {
+            final InputStream in = new FileInputStream(this.indexFile);
+            try {
+                this.index.load(in);
+            } finally {
+                close(in);
+            }
+        }
+    }
+
+    /**
+     * Record a bundle deployed from an auto-deploy directory.
+     *
+     * @param location
+     *            the bundle location
+     * @param path
+     *            the path to read its contents from
+     */
+    void deployed(final String location, final String path) {
+        this.deployed.put(location, path);
+    }
+
+    /**
+     * @param bundle
+     *            a bundle installed by the run
+     */
+    void installed(final Bundle bundle) {
+        this.changed.add(bundle.getLocation());
+        this.installed.add(bundle);
+    }
+
+    /**
+     * @param bundle
+     *            a bundle about to be uninstalled by the run
+     */
+    void uninstalling(final Bundle bundle) {
+        this.uninstalled.add(new Removed(bundle));
+    }
+
+    /**
+     * @param bundle
+     *            a bundle about to be updated by the run
+     */
+    void updating(final Bundle bundle) {
+        this.changed.add(bundle.getLocation());
+        this.updated.put(bundle, Boolean.valueOf(bundle.getState() == Bundle.ACTIVE));
+    }
+
+    /**
+     * Record the deployed bundles as the bundles to roll back to. Only the
+     * contents of new or changed bundles are copied into the history.
+     *
+     * @param callback
+     *            the callback to read the bundles with
+     * @throws IOException
+     *             if the history can not be written
+     */
+    void commit(final LoadCallback callback) throws IOException {
+        for (final Removed removed : this.uninstalled) {
+            this.index.remove(removed.bundle.getLocation());
+        }
+
+        for (final Map.Entry<String, String> entry : this.deployed.entrySet()) {
+            final String location = entry.getKey();
+            final String sha1 = this.index.getProperty(location);
+            if (!this.changed.contains(location) && sha1 != null && new File(this.objects, sha1).isFile()) {
+                continue;
+            }
+
+            this.index.setProperty(location, copy(entry.getValue(), callback));
+        }
+
+        // drop the contents no longer deployed.
+        final Set<String> referenced = new HashSet<String>();
+        for (final Object sha1 : this.index.values()) {
+            referenced.add((String) sha1);
+        }
+
+        final File[] files = this.objects.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!referenced.contains(file.getName()) && !file.delete()) {
+                    LOG.debug("Unable to delete {}", file);
+                }
+            }
+        }
+
+        store();
+    }
+
+    /**
+     * @return <tt>true</tt> if the run did not change any bundle
+     */
+    boolean isEmpty() {
+        return this.installed.isEmpty() && this.updated.isEmpty() && this.uninstalled.isEmpty();
+    }
+
+    /**
+     * Undo the changes of the run and refresh the affected bundles in one
+     * batch.
+     *
+     * @param context
+     *            the system bundle context
+     * @param refreshTimeoutMillis
+     *            how long to wait for the refresh to complete
+     */
+    void rollback(final BundleContext context, final long refreshTimeoutMillis) {
+        final Set<Bundle> refresh = new LinkedHashSet<Bundle>();
+        final List<Bundle> toStart = new ArrayList<Bundle>();
+
+        for (final Bundle bundle : this.installed) {
+            try {
+                bundle.uninstall();
+                refresh.add(bundle);
+            } catch (final BundleException ex) {
+                LOG.error("Rollback uninstall failed for " + bundle.getLocation() + ".", ex);
+            }
+        }
+
+        for (final Map.Entry<Bundle, Boolean> entry : this.updated.entrySet()) {
+            final Bundle bundle = entry.getKey();
+            final File previous = previous(bundle.getLocation());
+            if (previous == null) {
+                LOG.warn("No previous version of {} to roll back to", bundle.getLocation());
+                continue;
+            }
+
+            try {
+                final InputStream in = new FileInputStream(previous);
+                try {
+                    bundle.update(in);
+                } finally {
+                    close(in);
+                }
+                refresh.add(bundle);
+                if (entry.getValue().booleanValue()) {
+                    toStart.add(bundle);
+                }
+            } catch (final Exception ex) {
+                LOG.error("Rollback update failed for " + bundle.getLocation() + ".", ex);
+            }
+        }
+
+        for (final Removed removed : this.uninstalled) {
+            final String location = removed.bundle.getLocation();
+            final File previous = previous(location);
+            if (previous == null) {
+                LOG.warn("No previous version of {} to roll back to", location);
+                continue;
+            }
+
+            try {
+                final InputStream in = new FileInputStream(previous);
+                final Bundle bundle;
+                try {
+                    bundle = context.installBundle(location, in);
+                } finally {
+                    close(in);
+                }
+                bundle.adapt(BundleStartLevel.class).setStartLevel(removed.startLevel);
+                refresh.add(removed.bundle);
+                if (removed.started) {
+                    toStart.add(bundle);
+                }
+            } catch (final Exception ex) {
+                LOG.error("Rollback install failed for " + location + ".", ex);
+            }
+        }
+
+        try {
+            WiringRefresh.refresh(context, refresh, refreshTimeoutMillis);
+        } catch (@SuppressWarnings("unused") final InterruptedException ex) {
+            Thread.currentThread().interrupt(); // reset flag
+            return;
+        }
+
+        for (final Bundle bundle : toStart) {
+            try {
+                bundle.start();
+            } catch (final Exception ex) {
+                LOG.error("Rollback start failed for " + bundle.getLocation() + ".", ex);
+            }
+        }
+
+        LOG.info("Rolled back {} installed, {} updated and {} uninstalled bundles",
+                new Object[] { Integer.toString(this.installed.size()), Integer.toString(this.updated.size()),
+                        Integer.toString(this.uninstalled.size()) });
+    }
+
+    private String copy(final String path, final LoadCallback callback) throws IOException {
+        final MessageDigest digest = BundleFetcher.digest();
+        final File tmp = File.createTempFile("deploy", ".tmp", this.objects);
+
+        try {
+            final InputStream in;
+            try {
+                in = new DigestInputStream(callback.openStream(path), digest);
+            } catch (final BundleException ex) {
+                final IOException ioe = new IOException("Unable to read " + path);
+                ioe.initCause(ex);
+                throw ioe;
+            }
+
+            try {
+                final OutputStream out = new FileOutputStream(tmp);
+                try {
+                    final byte[] buffer = new byte[8192];
+                    for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                close(in);
+            }
+
+            final String sha1 = BundleFetcher.hex(digest.digest());
+            final File object = new File(this.objects, sha1);
+
+            // identical contents are already in the history under the same
+            // name.
+            if (!object.isFile() && !tmp.renameTo(object) && !object.isFile()) {
+                throw new IOException("Unable to move " + tmp + " to " + object);
+            }
+
+            return sha1;
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOG.debug("Unable to delete {}", tmp);
+            }
+        }
+    }
+
+    private File previous(final String location) {
+        final String sha1 = this.index.getProperty(location);
+        final File object = (sha1 == null) ? null : new File(this.objects, sha1);
+
+        return (object != null && object.isFile()) ? object : null;
+    }
+
+    private void store() throws IOException {
+        final File tmp = File.createTempFile("deployed", ".tmp", this.indexFile.getParentFile());
+
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            this.index.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        // replace the index in one step where the platform allows it.
+        if (!tmp.renameTo(this.indexFile)) {
+            if (!this.indexFile.delete() || !tmp.renameTo(this.indexFile)) {
+                tmp.delete();
+                throw new IOException("Unable to write " + this.indexFile);
+            }
+        }
+    }
+
+    private static void close(final InputStream in) {
+        try {
+            in.close();
+        } catch (@SuppressWarnings("unused") final IOException ex) {
+            // ignored
+        }
+    }
+}
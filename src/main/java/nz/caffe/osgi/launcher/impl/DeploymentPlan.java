@@ -0,0 +1,287 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The auto-deploy configuration compiled by
+ * {@link AutoProcessor#compile(java.util.Map, org.osgi.framework.BundleContext, String)}
+ * into the operations to perform: the deploy directories in start level order,
+ * the root bundles to resolve against a local repository and the
+ * auto-install and auto-start bundles, each listed once. A plan is immutable,
+ * so it can be kept and executed again, e.g. for a redeploy. The contents of
+ * the directories and the repository are read whenever the plan is executed.
+ */
+final class DeploymentPlan {
+
+    /**
+     * An auto-install or auto-start bundle.
+     */
+    static final class BundleStep {
+        final String location;
+        final boolean start;
+        final int startLevel;
+
+        BundleStep(final String location, final int startLevel, final boolean start) {
+            super();
+            this.location = location;
+            this.startLevel = startLevel;
+            this.start = start;
+        }
+    }
+
+    /**
+     * An auto-deploy directory.
+     */
+    static final class DirectoryStep {
+        final String directory;
+        final int startLevel;
+
+        DirectoryStep(final String directory, final int startLevel) {
+            super();
+            this.directory = directory;
+            this.startLevel = startLevel;
+        }
+    }
+
+    /**
+     * The root bundles to resolve against a local repository.
+     */
+    static final class RepositoryStep {
+        final File directory;
+        final File index;
+        final String roots;
+        final int startLevel;
+
+        RepositoryStep(final File directory, final File index, final String roots, final int startLevel) {
+            super();
+            this.directory = directory;
+            this.index = index;
+            this.roots = roots;
+            this.startLevel = startLevel;
+        }
+    }
+
+    /**
+     * Collects the settings of a plan. Anything not set is left off.
+     */
+    static final class Builder {
+        private boolean abandonStarts;
+        private List<String> actions = Collections.emptyList();
+        private List<BundleStep> bundles = Collections.emptyList();
+        private boolean byReference;
+        private List<DirectoryStep> directories = Collections.emptyList();
+        private String duplicates;
+        private File fetchCache;
+        private long fetchConnectTimeout;
+        private long fetchReadTimeout;
+        private int fetchThreads;
+        private long healthTimeout;
+        private File historyDir;
+        private boolean manifestOrder;
+        private RepositoryStep repository;
+        private long startBudget;
+        private boolean verify;
+        private boolean verifySigned;
+
+        Builder actions(final List<String> value) {
+            this.actions = value;
+            return this;
+        }
+
+        DeploymentPlan build() {
+            return new DeploymentPlan(this);
+        }
+
+        Builder bundles(final List<BundleStep> value) {
+            this.bundles = value;
+            return this;
+        }
+
+        Builder byReference(final boolean value) {
+            this.byReference = value;
+            return this;
+        }
+
+        Builder directories(final List<DirectoryStep> value) {
+            this.directories = value;
+            return this;
+        }
+
+        Builder duplicates(final String value) {
+            this.duplicates = value;
+            return this;
+        }
+
+        Builder fetch(final File cache, final int threads, final long connectTimeout, final long readTimeout) {
+            this.fetchCache = cache;
+            this.fetchThreads = threads;
+            this.fetchConnectTimeout = connectTimeout;
+            this.fetchReadTimeout = readTimeout;
+            return this;
+        }
+
+        Builder history(final File dir, final long timeout) {
+            this.historyDir = dir;
+            this.healthTimeout = timeout;
+            return this;
+        }
+
+        Builder manifestOrder(final boolean value) {
+            this.manifestOrder = value;
+            return this;
+        }
+
+        Builder repository(final RepositoryStep value) {
+            this.repository = value;
+            return this;
+        }
+
+        Builder startBudget(final long budget, final boolean abandon) {
+            this.startBudget = budget;
+            this.abandonStarts = abandon;
+            return this;
+        }
+
+        Builder verify(final boolean value, final boolean signed) {
+            this.verify = value;
+            this.verifySigned = signed;
+            return this;
+        }
+    }
+
+    final boolean abandonStarts;
+
+    final List<String> actions;
+
+    final List<BundleStep> bundles;
+
+    final boolean byReference;
+
+    final List<DirectoryStep> directories;
+
+    final String duplicates;
+
+    final File fetchCache;
+
+    final long fetchConnectTimeout;
+
+    final long fetchReadTimeout;
+
+    final int fetchThreads;
+
+    final long healthTimeout;
+
+    final File historyDir;
+
+    final boolean manifestOrder;
+
+    final RepositoryStep repository;
+
+    final long startBudget;
+
+    final boolean verify;
+
+    final boolean verifySigned;
+
+    private DeploymentPlan(final Builder builder) {
+        super();
+        this.actions = Collections.unmodifiableList(builder.actions);
+        this.directories = Collections.unmodifiableList(builder.directories);
+        this.bundles = Collections.unmodifiableList(builder.bundles);
+        this.byReference = builder.byReference;
+        this.manifestOrder = builder.manifestOrder;
+        this.startBudget = builder.startBudget;
+        this.abandonStarts = builder.abandonStarts;
+        this.fetchCache = builder.fetchCache;
+        this.fetchThreads = builder.fetchThreads;
+        this.fetchConnectTimeout = builder.fetchConnectTimeout;
+        this.fetchReadTimeout = builder.fetchReadTimeout;
+        this.verify = builder.verify;
+        this.verifySigned = builder.verifySigned;
+        this.historyDir = builder.historyDir;
+        this.healthTimeout = builder.healthTimeout;
+        this.duplicates = builder.duplicates;
+        this.repository = builder.repository;
+    }
+
+    /**
+     * @param action
+     *            an auto-deploy action
+     * @return <tt>true</tt> if the action is to be performed
+     */
+    boolean hasAction(final String action) {
+        return this.actions.contains(action);
+    }
+
+    @Override
+    public String toString() {
+        final StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (final IOException ex) {
+            // not thrown by a StringWriter
+            throw new IllegalStateException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write the plan, one operation per line.
+     *
+     * @param out
+     *            the writer to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    void write(final Writer out) throws IOException {
+        out.write("# auto-deploy actions: " + this.actions + (this.byReference ? ", by reference" : "")
+                + (this.manifestOrder ? ", manifest order" : "")
+                + (this.verify ? (this.verifySigned ? ", verified, signed" : ", verified") : "") + "\n");
+        if (this.fetchCache != null) {
+            out.write("# remote bundles cached in " + this.fetchCache + "\n");
+        }
+        if (this.duplicates != null) {
+            out.write("# duplicate bundles: " + this.duplicates + "\n");
+        }
+        if (this.historyDir != null) {
+            out.write("# rolled back to the bundles recorded in " + this.historyDir + " on failure\n");
+        }
+
+        if (!this.actions.isEmpty()) {
+            for (final DirectoryStep step : this.directories) {
+                out.write("directory\t" + step.startLevel + "\t" + step.directory + "\n");
+            }
+        }
+
+        if (this.repository != null) {
+            out.write("repository\t" + this.repository.startLevel + "\t" + this.repository.directory + "\t"
+                    + this.repository.roots + "\n");
+        }
+
+        for (final BundleStep step : this.bundles) {
+            out.write((step.start ? "start" : "install") + "\t" + step.startLevel + "\t" + step.location + "\n");
+        }
+
+        out.flush();
+    }
+}
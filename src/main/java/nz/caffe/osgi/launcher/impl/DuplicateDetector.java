@@ -0,0 +1,224 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds bundles deployed more than once, by symbolic name and version, across
+ * the auto-deploy directories and the auto-install and auto-start properties.
+ * The content hash of each bundle tells an accidental copy from a different
+ * build carrying the same version. Depending on the policy, the first bundle
+ * wins, the highest version of each symbolic name wins or the deployment
+ * fails. Bundles which can not be read or have no symbolic name are always
+ * deployed.
+ */
+final class DuplicateDetector {
+
+    /**
+     * Opens a bundle for reading.
+     */
+    interface Source {
+        /**
+         * @param name
+         *            the path or location of the bundle
+         * @return the contents of the bundle or <tt>null</tt> if it can not
+         *         be read before it is installed
+         * @throws Exception
+         *             if reading the bundle fails
+         */
+        InputStream open(String name) throws Exception;
+    }
+
+    private static final class Candidate {
+        boolean committed;
+        final String name;
+        final String sha1;
+        final String symbolicName;
+        final Version version;
+
+        Candidate(final String name, final String symbolicName, final Version version, final String sha1) {
+            super();
+            this.name = name;
+            this.symbolicName = symbolicName;
+            this.version = version;
+            this.sha1 = sha1;
+        }
+
+        @Override
+        public String toString() {
+            return this.symbolicName + " " + this.version + " (" + this.name + ")";
+        }
+    }
+
+    /**
+     * The name of the policy keeping the first bundle found.
+     */
+    static final String FIRST = "first";
+
+    /**
+     * The name of the policy keeping the highest version of each symbolic
+     * name.
+     */
+    static final String HIGHEST = "highest";
+
+    /**
+     * The name of the policy failing the deployment.
+     */
+    static final String FAIL = "fail";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DuplicateDetector.class);
+
+    private final Map<String, Candidate> accepted = new LinkedHashMap<String, Candidate>();
+
+    private final String policy;
+
+    /**
+     * @param policy
+     *            one of {@link #FIRST}, {@link #HIGHEST} or {@link #FAIL}
+     */
+    DuplicateDetector(final String policy) {
+        super();
+        this.policy = policy;
+    }
+
+    /**
+     * Select the bundles to deploy. The bundles are compared with each other
+     * and with the bundles selected by earlier calls, which may already be
+     * installed and so are never skipped.
+     *
+     * @param names
+     *            the paths or locations of the bundles, in deployment order
+     * @param source
+     *            the source to read the bundles from
+     * @return the paths or locations to skip
+     * @throws BundleException
+     *             with the report if the policy is {@link #FAIL} and there
+     *             are duplicates
+     */
+    Set<String> select(final List<String> names, final Source source) throws BundleException {
+        final Set<String> skipped = new HashSet<String>();
+        final List<String> report = new ArrayList<String>();
+
+        for (final String name : names) {
+            final Candidate candidate = read(name, source);
+            if (candidate == null) {
+                continue;
+            }
+
+            final String key = HIGHEST.equals(this.policy) ? candidate.symbolicName
+                    : candidate.symbolicName + ";" + candidate.version;
+            final Candidate existing = this.accepted.get(key);
+
+            if (existing == null) {
+                this.accepted.put(key, candidate);
+            } else if (HIGHEST.equals(this.policy) && candidate.version.compareTo(existing.version) > 0) {
+                if (existing.committed) {
+                    // a lower version which is already installed stays.
+                    report.add(describe(candidate, existing) + ", both deployed");
+                } else {
+                    skipped.add(existing.name);
+                    report.add(describe(existing, candidate) + ", skipped");
+                }
+                this.accepted.put(key, candidate);
+            } else {
+                skipped.add(candidate.name);
+                report.add(describe(candidate, existing) + (FAIL.equals(this.policy) ? "" : ", skipped"));
+            }
+        }
+
+        for (final Candidate candidate : this.accepted.values()) {
+            candidate.committed = true;
+        }
+
+        if (report.isEmpty()) {
+            return skipped;
+        }
+
+        final StringBuilder text = new StringBuilder();
+        text.append(report.size()).append(" duplicate bundles:");
+        for (final String line : report) {
+            text.append("\n    ").append(line);
+        }
+
+        if (FAIL.equals(this.policy)) {
+            throw new BundleException(text.toString(), BundleException.DUPLICATE_BUNDLE_ERROR);
+        }
+
+        LOG.warn(text.toString());
+
+        return skipped;
+    }
+
+    private static String describe(final Candidate duplicate, final Candidate kept) {
+        return duplicate + " duplicates " + kept
+                + (duplicate.sha1.equals(kept.sha1) ? " with identical content" : " with different content");
+    }
+
+    private static Candidate read(final String name, final Source source) {
+        InputStream in = null;
+        try {
+            in = source.open(name);
+            if (in == null) {
+                return null;
+            }
+
+            // hash the whole bundle while reading its manifest.
+            final DigestInputStream digest = new DigestInputStream(in, BundleFetcher.digest());
+            final Attributes headers = ManifestHeader.read(digest);
+
+            final byte[] buffer = new byte[8192];
+            while (digest.read(buffer) != -1) {
+                // only read to hash
+            }
+
+            final String symbolicName = (headers == null) ? null
+                    : ManifestHeader.firstPath(headers.getValue(Constants.BUNDLE_SYMBOLICNAME));
+            if (symbolicName == null) {
+                return null;
+            }
+
+            return new Candidate(name, symbolicName, Version.parseVersion(headers.getValue(Constants.BUNDLE_VERSION)),
+                    BundleFetcher.hex(digest.getMessageDigest().digest()));
+        } catch (final Exception ex) {
+            LOG.debug("Unable to read " + name + " to check for duplicates", ex);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (@SuppressWarnings("unused") final IOException ex) {
+                    // ignored
+                }
+            }
+        }
+    }
+}
@@ -22,6 +22,8 @@ import org.osgi.framework.launch.Framework;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
+
 /**
  * Helper class to poll for stop events which will restart the framework if
  * needed.
@@ -29,6 +31,7 @@ import org.slf4j.LoggerFactory;
 public final class FrameworkEventPollingCallable implements Callable<Object> {
 
     private final Framework fwk;
+    private final BaseLauncher launcher;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final Thread shutdownHook;
 
@@ -37,9 +40,25 @@ public final class FrameworkEventPollingCallable implements Callable<Object> {
      * @param shutdownHook
      */
     public FrameworkEventPollingCallable(Framework framework, Thread shutdownHook) {
+        this(framework, shutdownHook, null);
+    }
+
+    /**
+     * Poll the framework of a launched launcher. Its listeners are registered
+     * again and its launch monitor is told whenever the framework restarts.
+     *
+     * @param launcher
+     *            the launcher, after launching
+     */
+    public FrameworkEventPollingCallable(BaseLauncher launcher) {
+        this(launcher.getFramework(), launcher.getShutdownHook(), launcher);
+    }
+
+    private FrameworkEventPollingCallable(Framework framework, Thread shutdownHook, BaseLauncher launcher) {
         super();
         this.fwk = framework;
         this.shutdownHook = shutdownHook;
+        this.launcher = launcher;
     }
 
     public Object call() throws Exception {
@@ -57,10 +76,27 @@ public final class FrameworkEventPollingCallable implements Callable<Object> {
 
                 this.logger.debug("Restarting framework");
 
-                // Start the framework.
-                this.fwk.start();
+                final long start = System.nanoTime();
+
+                if (this.launcher == null) {
+                    // Start the framework.
+                    this.fwk.start();
+                } else {
+                    // Listeners do not survive a restart, so register them
+                    // again before any bundles are started.
+                    this.fwk.init();
+                    this.launcher.restarted(this.fwk.getBundleContext());
+                    this.fwk.start();
+
+                    this.launcher.getLaunchMonitor().phase(Phase.FRAMEWORK_RESTART, null, start, System.nanoTime());
+                }
             }
         } finally {
+            if (this.launcher != null) {
+                final long now = System.nanoTime();
+                this.launcher.getLaunchMonitor().phase(Phase.SHUTDOWN, null, now, now);
+            }
+
             // remove the shutdown hook after stopping
             final boolean success = Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
 
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+
+/**
+ * Fans the framework, bundle and service events out to any number of
+ * subscribers. Each subscriber has its own bounded buffer which is filled
+ * without blocking, so a slow subscriber never holds up the framework's event
+ * dispatch: when its buffer is full, further events are dropped and the
+ * subscriber is told how many it missed.
+ */
+public final class FrameworkEventStream implements FrameworkListener, BundleListener, ServiceListener {
+
+    /**
+     * An event. Events are immutable.
+     */
+    public static final class Event {
+        private final long bundleId;
+        private final String detail;
+        private final String name;
+        private final String symbolicName;
+        private final long time;
+        private final String type;
+
+        Event(final String type, final String name, final Bundle bundle, final String detail) {
+            super();
+            this.type = type;
+            this.name = name;
+            this.bundleId = (bundle == null) ? -1 : bundle.getBundleId();
+            this.symbolicName = (bundle == null) ? null : bundle.getSymbolicName();
+            this.detail = detail;
+            this.time = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the id of the bundle or <tt>-1</tt>
+         */
+        public long getBundleId() {
+            return this.bundleId;
+        }
+
+        /**
+         * @return additional detail or <tt>null</tt>
+         */
+        public String getDetail() {
+            return this.detail;
+        }
+
+        /**
+         * @return the event name, e.g. <tt>STARTED</tt>
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the symbolic name of the bundle or <tt>null</tt>
+         */
+        public String getSymbolicName() {
+            return this.symbolicName;
+        }
+
+        /**
+         * @return when the event was received, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * @return the event type: <tt>framework</tt>, <tt>bundle</tt>,
+         *         <tt>service</tt> or <tt>stream</tt>
+         */
+        public String getType() {
+            return this.type;
+        }
+
+        /**
+         * @return the event as a JSON object
+         */
+        public String toJson() {
+            final StringBuilder json = new StringBuilder();
+            json.append("{\"type\":").append(ChromeTraceFormat.quote(this.type));
+            json.append(",\"name\":").append(ChromeTraceFormat.quote(this.name));
+            json.append(",\"time\":").append(this.time);
+            if (this.bundleId >= 0) {
+                json.append(",\"bundleId\":").append(this.bundleId);
+            }
+            if (this.symbolicName != null) {
+                json.append(",\"symbolicName\":").append(ChromeTraceFormat.quote(this.symbolicName));
+            }
+            if (this.detail != null) {
+                json.append(",\"detail\":").append(ChromeTraceFormat.quote(this.detail));
+            }
+            return json.append('}').toString();
+        }
+
+        @Override
+        public String toString() {
+            return this.type + " " + this.name + " " + this.symbolicName;
+        }
+    }
+
+    /**
+     * A subscription to the stream.
+     */
+    public final class Subscription {
+        private volatile boolean closed;
+        private final AtomicLong dropped = new AtomicLong();
+        private final BlockingQueue<Event> queue;
+
+        Subscription(final int capacity) {
+            super();
+            this.queue = new ArrayBlockingQueue<Event>(capacity);
+        }
+
+        /**
+         * Stop receiving events. A thread waiting in
+         * {@link #poll(long, TimeUnit)} returns at once.
+         */
+        public void close() {
+            this.closed = true;
+            FrameworkEventStream.this.subscriptions.remove(this);
+
+            // a full buffer does not block the poller, so the marker is only
+            // needed when it fits.
+            this.queue.offer(CLOSED);
+        }
+
+        /**
+         * @return <tt>true</tt> if the subscription or the stream has been
+         *         closed
+         */
+        public boolean isClosed() {
+            return this.closed;
+        }
+
+        /**
+         * Take the next event, waiting if necessary. If events were dropped
+         * since the last call, a <tt>stream</tt> event named <tt>DROPPED</tt>
+         * is returned first.
+         *
+         * @param timeout
+         *            the maximum time to wait
+         * @param unit
+         *            the unit of the timeout
+         * @return the event or <tt>null</tt> if none arrived in time or the
+         *         subscription is closed
+         * @throws InterruptedException
+         *             if interrupted while waiting
+         */
+        public Event poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+            if (this.closed) {
+                return null;
+            }
+
+            final long missed = this.dropped.getAndSet(0);
+            if (missed > 0) {
+                return new Event("stream", "DROPPED", null, Long.toString(missed) + " events dropped");
+            }
+
+            final Event event = this.queue.poll(timeout, unit);
+
+            return (event == CLOSED) ? null : event;
+        }
+
+        void offer(final Event event) {
+            if (!this.queue.offer(event)) {
+                this.dropped.incrementAndGet();
+                FrameworkEventStream.this.dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private static final List<String> BUNDLE_EVENTS = Arrays.asList("INSTALLED", "STARTED", "STOPPED", "UPDATED",
+            "UNINSTALLED", "RESOLVED", "UNRESOLVED", "STARTING", "STOPPING", "LAZY_ACTIVATION");
+
+    private static final List<String> FRAMEWORK_EVENTS = Arrays.asList("STARTED", "ERROR", "PACKAGES_REFRESHED",
+            "STARTLEVEL_CHANGED", "WARNING", "INFO", "STOPPED", "STOPPED_UPDATE",
+            "STOPPED_BOOTCLASSPATH_MODIFIED", "WAIT_TIMEDOUT", "STOPPED_SYSTEM_REFRESHED");
+
+    /**
+     * Wakes up a poller when its subscription is closed, never returned.
+     */
+    private static final Event CLOSED = new Event("stream", "CLOSED", null, null);
+
+    private static final List<String> SERVICE_EVENTS = Arrays.asList("REGISTERED", "MODIFIED", "UNREGISTERING",
+            "MODIFIED_ENDMATCH");
+
+    /**
+     * The event types are bit flags, so the name is at the index of the set
+     * bit.
+     */
+    private static String name(final List<String> names, final int type) {
+        final int index = Integer.numberOfTrailingZeros(type);
+
+        return (index < names.size()) ? names.get(index) : Integer.toString(type);
+    }
+
+    private volatile boolean closed;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    public void bundleChanged(final BundleEvent event) {
+        if (!this.subscriptions.isEmpty()) {
+            publish(new Event("bundle", name(BUNDLE_EVENTS, event.getType()), event.getBundle(), null));
+        }
+    }
+
+    /**
+     * Close the stream and every subscription. No further subscriptions are
+     * accepted.
+     */
+    public void close() {
+        this.closed = true;
+
+        for (final Subscription subscription : this.subscriptions) {
+            subscription.close();
+        }
+    }
+
+    public void frameworkEvent(final FrameworkEvent event) {
+        if (!this.subscriptions.isEmpty()) {
+            final Throwable throwable = event.getThrowable();
+
+            publish(new Event("framework", name(FRAMEWORK_EVENTS, event.getType()), event.getBundle(),
+                    (throwable == null) ? null : throwable.toString()));
+        }
+    }
+
+    /**
+     * @return the number of events dropped because a subscriber's buffer was
+     *         full
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    public void serviceChanged(final ServiceEvent event) {
+        if (!this.subscriptions.isEmpty()) {
+            final String[] objectClass = (String[]) event.getServiceReference().getProperty(Constants.OBJECTCLASS);
+
+            publish(new Event("service", name(SERVICE_EVENTS, event.getType()),
+                    event.getServiceReference().getBundle(), Arrays.toString(objectClass)));
+        }
+    }
+
+    /**
+     * Subscribe to the stream.
+     *
+     * @param capacity
+     *            how many events to buffer before dropping them, at least 1
+     * @return the subscription
+     * @throws IllegalStateException
+     *             if the stream has been closed
+     */
+    public Subscription subscribe(final int capacity) {
+        if (this.closed) {
+            throw new IllegalStateException("The event stream is closed");
+        }
+
+        final Subscription subscription = new Subscription(capacity);
+        this.subscriptions.add(subscription);
+
+        // the stream may have closed before the subscription was added.
+        if (this.closed) {
+            subscription.close();
+            throw new IllegalStateException("The event stream is closed");
+        }
+
+        return subscription;
+    }
+
+    /**
+     * Register the stream with the given system bundle context.
+     *
+     * @param context
+     *            the system bundle context
+     */
+    void register(final BundleContext context) {
+        context.addFrameworkListener(this);
+        context.addBundleListener(this);
+        context.addServiceListener(this);
+    }
+
+    private void publish(final Event event) {
+        for (final Subscription subscription : this.subscriptions) {
+            subscription.offer(event);
+        }
+    }
+}
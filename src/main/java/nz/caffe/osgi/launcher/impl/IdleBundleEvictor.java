@@ -0,0 +1,315 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.hooks.service.FindHook;
+import org.osgi.framework.hooks.service.ListenerHook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops configured bundles which have been idle for a while when the heap or
+ * the class metadata space is nearly full. A bundle is idle while none of the
+ * services it registers is in use by another bundle. Evicted bundles are
+ * stopped transiently, so they start again with the framework, and a bundle
+ * with a lazy activation policy is put back into the <tt>STARTING</tt> state
+ * so the framework activates it on its next class load. An evicted bundle is
+ * also started again when a bundle looks up or starts listening for one of
+ * the services it registered. That start is asynchronous, so a lookup which
+ * triggers it does not see the service yet, but a service tracker does.
+ */
+final class IdleBundleEvictor implements FindHook, ListenerHook, SynchronousBundleListener {
+
+    private static final class Tracked {
+        final Bundle bundle;
+        volatile boolean evicted;
+        volatile long lastUsed = System.nanoTime();
+        volatile Set<String> objectClasses = new HashSet<String>();
+
+        Tracked(final Bundle bundle) {
+            super();
+            this.bundle = bundle;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdleBundleEvictor.class);
+
+    /**
+     * @return the highest usage, in percent, of the heap after the last
+     *         collection and of the class metadata space
+     */
+    private static int memoryUsagePercent() {
+        int highest = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage usage;
+            if (pool.getType() == MemoryType.HEAP) {
+                // the usage after a collection ignores garbage.
+                usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage() : null;
+            } else if (pool.getName().indexOf("Metaspace") >= 0 || pool.getName().indexOf("Perm Gen") >= 0) {
+                usage = pool.getUsage();
+            } else {
+                usage = null;
+            }
+
+            if (usage != null && usage.getMax() > 0) {
+                highest = Math.max(highest, (int) (usage.getUsed() * 100 / usage.getMax()));
+            }
+        }
+        return highest;
+    }
+
+    private volatile BundleContext context;
+
+    private volatile ScheduledExecutorService executor;
+
+    private final long idleNanos;
+
+    private final long intervalMillis;
+
+    private final Set<String> symbolicNames;
+
+    private final int thresholdPercent;
+
+    private final ConcurrentMap<Long, Tracked> tracked = new ConcurrentHashMap<Long, Tracked>();
+
+    /**
+     * @param symbolicNames
+     *            the symbolic names of the bundles which may be evicted
+     * @param idleMillis
+     *            how long a bundle must be idle before it may be evicted
+     * @param thresholdPercent
+     *            the memory usage, in percent, above which idle bundles are
+     *            evicted
+     * @param intervalMillis
+     *            how often the memory usage and the bundles are checked
+     */
+    IdleBundleEvictor(final Set<String> symbolicNames, final long idleMillis, final int thresholdPercent,
+            final long intervalMillis) {
+        super();
+        this.symbolicNames = symbolicNames;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.thresholdPercent = thresholdPercent;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void added(final Collection<ListenerInfo> listeners) {
+        for (final ListenerInfo listener : listeners) {
+            if (!listener.isRemoved()) {
+                requested(null, listener.getFilter());
+            }
+        }
+    }
+
+    public void bundleChanged(final BundleEvent event) {
+        final Bundle bundle = event.getBundle();
+
+        if (bundle.getBundleId() == 0) {
+            // the framework is stopping, nothing needs evicting.
+            if (event.getType() == BundleEvent.STOPPING) {
+                this.executor.shutdownNow();
+            }
+            return;
+        }
+
+        switch (event.getType()) {
+        case BundleEvent.STARTED:
+            final Tracked started = this.tracked.get(Long.valueOf(bundle.getBundleId()));
+            if (started != null) {
+                started.evicted = false;
+                started.lastUsed = System.nanoTime();
+            }
+            break;
+        case BundleEvent.UNINSTALLED:
+            this.tracked.remove(Long.valueOf(bundle.getBundleId()));
+            break;
+        default:
+            break;
+        }
+    }
+
+    public void find(final BundleContext bundleContext, final String name, final String filter,
+            final boolean allServices, final Collection<ServiceReference<?>> references) {
+        requested(name, filter);
+    }
+
+    /**
+     * Register the evictor with the given system bundle context. Listeners and
+     * services do not survive a framework restart, and the eviction thread
+     * stops with the framework, so this is called again after each restart,
+     * before the framework is started.
+     *
+     * @param ctx
+     *            the system bundle context
+     */
+    void register(final BundleContext ctx) {
+        // the bundles of the stopped framework are stale.
+        this.tracked.clear();
+        this.context = ctx;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "Idle Bundle Eviction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        ctx.addBundleListener(this);
+        ctx.registerService(new String[] { FindHook.class.getName(), ListenerHook.class.getName() }, this, null);
+
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void removed(final Collection<ListenerInfo> listeners) {
+        // nothing to do
+    }
+
+    private void check() {
+        final long now = System.nanoTime();
+
+        for (final Bundle bundle : this.context.getBundles()) {
+            if (bundle.getState() != Bundle.ACTIVE || !this.symbolicNames.contains(bundle.getSymbolicName())) {
+                continue;
+            }
+
+            final Long id = Long.valueOf(bundle.getBundleId());
+            Tracked entry = this.tracked.get(id);
+            if (entry == null) {
+                final Tracked added = new Tracked(bundle);
+                entry = this.tracked.putIfAbsent(id, added);
+                entry = (entry == null) ? added : entry;
+            }
+
+            final Set<String> objectClasses = new HashSet<String>();
+            final ServiceReference<?>[] services = bundle.getRegisteredServices();
+            if (services != null) {
+                for (final ServiceReference<?> service : services) {
+                    for (final String objectClass : (String[]) service.getProperty(Constants.OBJECTCLASS)) {
+                        objectClasses.add(objectClass);
+                    }
+
+                    final Bundle[] users = service.getUsingBundles();
+                    if (users != null) {
+                        for (final Bundle user : users) {
+                            if (user.getBundleId() != bundle.getBundleId()) {
+                                entry.lastUsed = now;
+                            }
+                        }
+                    }
+                }
+            }
+            entry.objectClasses = objectClasses;
+        }
+
+        final int usage = memoryUsagePercent();
+        if (usage < this.thresholdPercent) {
+            return;
+        }
+
+        for (final Tracked entry : this.tracked.values()) {
+            if (entry.bundle.getState() == Bundle.ACTIVE && now - entry.lastUsed >= this.idleNanos) {
+                evict(entry, usage);
+            }
+        }
+    }
+
+    private void evict(final Tracked entry, final int usage) {
+        final Bundle bundle = entry.bundle;
+        try {
+            entry.evicted = true;
+            bundle.stop(Bundle.STOP_TRANSIENT);
+
+            LOG.info("Evicted idle bundle {} at {}% memory usage", bundle.getSymbolicName(),
+                    Integer.toString(usage));
+
+            if (bundle.getHeaders().get(Constants.BUNDLE_ACTIVATIONPOLICY) != null) {
+                bundle.start(Bundle.START_TRANSIENT | Bundle.START_ACTIVATION_POLICY);
+            }
+        } catch (final BundleException ex) {
+            LOG.warn("Unable to evict idle bundle " + bundle.getSymbolicName(), ex);
+        } catch (final IllegalStateException ex) {
+            LOG.debug("Unable to evict idle bundle " + bundle.getSymbolicName(), ex);
+        }
+    }
+
+    private void requested(final String name, final String filter) {
+        // called for every service lookup, so only the tracked bundles are
+        // looked at.
+        for (final Tracked entry : this.tracked.values()) {
+            if (!entry.evicted) {
+                continue;
+            }
+
+            for (final String objectClass : entry.objectClasses) {
+                if (objectClass.equals(name)
+                        || (filter != null && filter.indexOf(Constants.OBJECTCLASS + "=" + objectClass) >= 0)) {
+                    reactivate(entry);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void reactivate(final Tracked entry) {
+        final Bundle bundle = entry.bundle;
+        entry.evicted = false;
+        entry.lastUsed = System.nanoTime();
+
+        if (this.executor.isShutdown()) {
+            return;
+        }
+
+        // the hooks are called while the framework serves a lookup, so the
+        // bundle is started on the evictor thread.
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    bundle.start(Bundle.START_TRANSIENT);
+
+                    LOG.info("Reactivated evicted bundle {}", bundle.getSymbolicName());
+                } catch (final BundleException ex) {
+                    LOG.warn("Unable to reactivate evicted bundle " + bundle.getSymbolicName(), ex);
+                } catch (final IllegalStateException ex) {
+                    LOG.debug("Unable to reactivate evicted bundle " + bundle.getSymbolicName(), ex);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.launch.Framework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LaunchMonitor;
+
+/**
+ * Collects counts and latencies of the bundle operations and exposes them as
+ * an MBean. All counters are updated without locking, so reading them never
+ * contends with the launcher or the framework.
+ */
+public final class LauncherMetrics implements LaunchMonitor, LauncherMetricsMBean {
+
+    /**
+     * Upper bounds of the bundle start latency histogram buckets, in
+     * nanoseconds. A final bucket counts all larger values.
+     */
+    static final long[] START_BUCKET_BOUNDS = { TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(25), TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100),
+            TimeUnit.MILLISECONDS.toNanos(250), TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(2500), TimeUnit.SECONDS.toNanos(5), TimeUnit.SECONDS.toNanos(10),
+            TimeUnit.SECONDS.toNanos(30), TimeUnit.SECONDS.toNanos(60) };
+
+    private static final class LevelStatistics {
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong installNanos = new AtomicLong();
+        final AtomicLong installs = new AtomicLong();
+        final AtomicLong startNanos = new AtomicLong();
+        final AtomicLong starts = new AtomicLong();
+
+        LevelStatistics() {
+            super();
+        }
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    static String stateName(final int state) {
+        switch (state) {
+        case Bundle.ACTIVE:
+            return "ACTIVE";
+        case Bundle.INSTALLED:
+            return "INSTALLED";
+        case Bundle.RESOLVED:
+            return "RESOLVED";
+        case Bundle.STARTING:
+            return "STARTING";
+        case Bundle.STOPPING:
+            return "STOPPING";
+        case Bundle.UNINSTALLED:
+            return "UNINSTALLED";
+        default:
+            return Integer.toString(state);
+        }
+    }
+
+    private final AtomicLong cycleFailures = new AtomicLong();
+
+    private final AtomicLong cycleInstalls = new AtomicLong();
+
+    private final AtomicLong cycleStart = new AtomicLong();
+
+    private final AtomicLong cycleUninstalls = new AtomicLong();
+
+    private final AtomicLong cycleUpdates = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLongArray operationFailures = new AtomicLongArray(Operation.values().length);
+
+    private final AtomicLongArray operations = new AtomicLongArray(Operation.values().length);
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+
+    private final AtomicLongArray startBuckets = new AtomicLongArray(START_BUCKET_BOUNDS.length + 1);
+
+    private final AtomicLong startCount = new AtomicLong();
+
+    private final AtomicLong startNanosTotal = new AtomicLong();
+
+    private volatile Framework framework;
+
+    private final BaseLauncher launcher;
+
+    private volatile long lastFailures;
+
+    private volatile long lastInstalls;
+
+    private volatile long lastNanos;
+
+    private volatile long lastUninstalls;
+
+    private volatile long lastUpdates;
+
+    private final ConcurrentMap<Integer, LevelStatistics> levels = new ConcurrentHashMap<Integer, LevelStatistics>();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final AtomicLong maxStartNanos = new AtomicLong();
+
+    private volatile ObjectName objectName;
+
+    private final AtomicLong restarts = new AtomicLong();
+
+    /**
+     * @param launcher
+     *            the launcher whose auto-deploy processing can be triggered
+     */
+    LauncherMetrics(final BaseLauncher launcher) {
+        super();
+        this.launcher = launcher;
+    }
+
+    public void bundle(final Operation operation, final String location, final Bundle bundle,
+            final int startLevel, final long startNanos, final long endNanos, final Throwable failure) {
+        final LevelStatistics level = level(startLevel);
+        final long nanos = endNanos - startNanos;
+
+        if (failure != null) {
+            this.operationFailures.incrementAndGet(operation.ordinal());
+            this.failures.incrementAndGet();
+            this.cycleFailures.incrementAndGet();
+            level.failures.incrementAndGet();
+            return;
+        }
+
+        this.operations.incrementAndGet(operation.ordinal());
+
+        switch (operation) {
+        case INSTALL:
+            level.installs.incrementAndGet();
+            level.installNanos.addAndGet(nanos);
+            this.cycleInstalls.incrementAndGet();
+            break;
+        case START:
+            level.starts.incrementAndGet();
+            level.startNanos.addAndGet(nanos);
+            updateMax(this.maxStartNanos, nanos);
+            this.startBuckets.incrementAndGet(bucket(nanos));
+            this.startCount.incrementAndGet();
+            this.startNanosTotal.addAndGet(nanos);
+            break;
+        case UNINSTALL:
+            this.cycleUninstalls.incrementAndGet();
+            break;
+        case UPDATE:
+            this.cycleUpdates.incrementAndGet();
+            break;
+        default:
+            break;
+        }
+    }
+
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    public String getFrameworkState() {
+        final Framework fwk = this.framework;
+
+        return (fwk == null) ? "UNKNOWN" : stateName(fwk.getState());
+    }
+
+    public long getInstallCount() {
+        long count = 0;
+        for (final LevelStatistics level : this.levels.values()) {
+            count += level.installs.get();
+        }
+        return count;
+    }
+
+    public long getInstallTimeMillis() {
+        long nanos = 0;
+        for (final LevelStatistics level : this.levels.values()) {
+            nanos += level.installNanos.get();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public long getLastAutoDeployFailureCount() {
+        return this.lastFailures;
+    }
+
+    public long getLastAutoDeployInstallCount() {
+        return this.lastInstalls;
+    }
+
+    public long getLastAutoDeployTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.lastNanos);
+    }
+
+    public long getLastAutoDeployUninstallCount() {
+        return this.lastUninstalls;
+    }
+
+    public long getLastAutoDeployUpdateCount() {
+        return this.lastUpdates;
+    }
+
+    public long getMaxStartTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxStartNanos.get());
+    }
+
+    public long getRestartCount() {
+        return this.restarts.get();
+    }
+
+    public long getStartCount() {
+        long count = 0;
+        for (final LevelStatistics level : this.levels.values()) {
+            count += level.starts.get();
+        }
+        return count;
+    }
+
+    public String[] getStartLevelStatistics() {
+        final List<Integer> keys = new ArrayList<Integer>(this.levels.keySet());
+        Collections.sort(keys);
+
+        final String[] result = new String[keys.size()];
+        for (int i = 0; i < result.length; i++) {
+            final LevelStatistics level = this.levels.get(keys.get(i));
+
+            result[i] = "level " + keys.get(i) + ": installs=" + level.installs.get() + " installMillis="
+                    + TimeUnit.NANOSECONDS.toMillis(level.installNanos.get()) + " starts=" + level.starts.get()
+                    + " startMillis=" + TimeUnit.NANOSECONDS.toMillis(level.startNanos.get()) + " failures="
+                    + level.failures.get();
+        }
+
+        return result;
+    }
+
+    public long getStartTimeMillis() {
+        long nanos = 0;
+        for (final LevelStatistics level : this.levels.values()) {
+            nanos += level.startNanos.get();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public long getTimeToReadyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.phaseNanos.get(Phase.READY.ordinal()));
+    }
+
+    public void phase(final Phase phase, final String detail, final long startNanos, final long endNanos) {
+        this.phaseNanos.set(phase.ordinal(), endNanos - startNanos);
+
+        switch (phase) {
+        case AUTO_DEPLOY:
+            this.cycleStart.set(startNanos);
+            break;
+        case AUTO_PROPERTIES:
+            // the auto-properties are processed last
+            this.lastNanos = endNanos - this.cycleStart.get();
+            this.lastInstalls = this.cycleInstalls.getAndSet(0);
+            this.lastUpdates = this.cycleUpdates.getAndSet(0);
+            this.lastUninstalls = this.cycleUninstalls.getAndSet(0);
+            this.lastFailures = this.cycleFailures.getAndSet(0);
+            break;
+        case FRAMEWORK_RESTART:
+            this.restarts.incrementAndGet();
+            break;
+        case SHUTDOWN:
+            unregister();
+            this.framework = null;
+            break;
+        default:
+            break;
+        }
+    }
+
+    public void runAutoDeploy() throws Exception {
+        this.launcher.redeploy();
+    }
+
+    /**
+     * @param fwk
+     *            the framework whose state to expose
+     */
+    void attach(final Framework fwk) {
+        this.framework = fwk;
+    }
+
+    /**
+     * @return the framework or <tt>null</tt> if it has shut down
+     */
+    Framework getFramework() {
+        return this.framework;
+    }
+
+    /**
+     * @param operation
+     *            the operation
+     * @return the number of failures of the operation
+     */
+    long getOperationFailures(final Operation operation) {
+        return this.operationFailures.get(operation.ordinal());
+    }
+
+    /**
+     * @param operation
+     *            the operation
+     * @return the number of successful operations
+     */
+    long getOperations(final Operation operation) {
+        return this.operations.get(operation.ordinal());
+    }
+
+    /**
+     * @param phase
+     *            the phase
+     * @return how long the phase took the last time it ran, in nanoseconds
+     */
+    long getPhaseNanos(final Phase phase) {
+        return this.phaseNanos.get(phase.ordinal());
+    }
+
+    /**
+     * @return the non-cumulative counts of the start latency histogram
+     *         buckets, see {@link #START_BUCKET_BOUNDS}
+     */
+    long[] getStartBuckets() {
+        final long[] buckets = new long[this.startBuckets.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = this.startBuckets.get(i);
+        }
+        return buckets;
+    }
+
+    /**
+     * @return the number of bundle starts in the histogram
+     */
+    long getStartHistogramCount() {
+        return this.startCount.get();
+    }
+
+    /**
+     * @return the sum of the bundle start latencies in the histogram, in
+     *         nanoseconds
+     */
+    long getStartHistogramSum() {
+        return this.startNanosTotal.get();
+    }
+
+    /**
+     * Register with the platform MBean server.
+     *
+     * @param name
+     *            the object name to register under
+     * @throws JMException
+     *             if registering fails
+     */
+    void register(final String name) throws JMException {
+        final ObjectName on = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        this.objectName = on;
+
+        this.logger.debug("Registered launcher MBean {}", name);
+    }
+
+    /**
+     * Unregister from the platform MBean server, if registered.
+     */
+    void unregister() {
+        final ObjectName on = this.objectName;
+        this.objectName = null;
+
+        if (on == null) {
+            return;
+        }
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (final JMException ex) {
+            this.logger.warn("Unable to unregister launcher MBean " + on, ex);
+        }
+    }
+
+    private int bucket(final long nanos) {
+        for (int i = 0; i < START_BUCKET_BOUNDS.length; i++) {
+            if (nanos <= START_BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return START_BUCKET_BOUNDS.length;
+    }
+
+    private LevelStatistics level(final int startLevel) {
+        final Integer key = Integer.valueOf(startLevel);
+
+        LevelStatistics level = this.levels.get(key);
+        if (level == null) {
+            level = new LevelStatistics();
+
+            final LevelStatistics existing = this.levels.putIfAbsent(key, level);
+            if (existing != null) {
+                level = existing;
+            }
+        }
+
+        return level;
+    }
+}
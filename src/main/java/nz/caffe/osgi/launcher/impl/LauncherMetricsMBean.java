@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+/**
+ * Management interface of the launcher, registered with the platform MBean
+ * server when <tt>caffe.jmx.enabled</tt> is set.
+ */
+public interface LauncherMetricsMBean {
+
+    /**
+     * @return the number of failed bundle operations
+     */
+    long getFailureCount();
+
+    /**
+     * @return the state of the framework, e.g. <tt>ACTIVE</tt>
+     */
+    String getFrameworkState();
+
+    /**
+     * @return the number of bundles installed
+     */
+    long getInstallCount();
+
+    /**
+     * @return the total time spent installing bundles
+     */
+    long getInstallTimeMillis();
+
+    /**
+     * @return the number of failed bundle operations in the last auto-deploy
+     *         run
+     */
+    long getLastAutoDeployFailureCount();
+
+    /**
+     * @return the number of bundles installed in the last auto-deploy run
+     */
+    long getLastAutoDeployInstallCount();
+
+    /**
+     * @return the time taken by the last auto-deploy run
+     */
+    long getLastAutoDeployTimeMillis();
+
+    /**
+     * @return the number of bundles uninstalled in the last auto-deploy run
+     */
+    long getLastAutoDeployUninstallCount();
+
+    /**
+     * @return the number of bundles updated in the last auto-deploy run
+     */
+    long getLastAutoDeployUpdateCount();
+
+    /**
+     * @return the longest time taken to start a single bundle
+     */
+    long getMaxStartTimeMillis();
+
+    /**
+     * @return how often the framework was restarted after an update
+     */
+    long getRestartCount();
+
+    /**
+     * @return the number of bundles started
+     */
+    long getStartCount();
+
+    /**
+     * @return the install, start and failure statistics for each start level
+     */
+    String[] getStartLevelStatistics();
+
+    /**
+     * @return the total time spent starting bundles
+     */
+    long getStartTimeMillis();
+
+    /**
+     * @return the time taken for the framework to become ready
+     */
+    long getTimeToReadyMillis();
+
+    /**
+     * Run the auto-deploy processing again.
+     *
+     * @throws Exception
+     *             if the processing fails
+     */
+    void runAutoDeploy() throws Exception;
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Parses OSGi manifest headers such as <tt>Import-Package</tt> into their
+ * clauses: <tt>path;path;attribute=value;directive:=value, ...</tt>.
+ */
+final class ManifestHeader {
+
+    /**
+     * A header clause.
+     */
+    static final class Clause {
+        final Map<String, String> attributes = new LinkedHashMap<String, String>();
+        final Map<String, String> directives = new LinkedHashMap<String, String>();
+        final List<String> paths = new ArrayList<String>();
+    }
+
+    /**
+     * Parse the given header value.
+     *
+     * @param header
+     *            the header value, may be <tt>null</tt>
+     * @return the clauses, empty if the header is <tt>null</tt>
+     */
+    static List<Clause> parse(final String header) {
+        final List<Clause> clauses = new ArrayList<Clause>();
+        if (header == null) {
+            return clauses;
+        }
+
+        for (final String clause : split(header, ',')) {
+            final Clause parsed = new Clause();
+
+            for (final String part : split(clause, ';')) {
+                final int directive = part.indexOf(":=");
+                final int attribute = part.indexOf('=');
+
+                if (directive > 0 && directive <= attribute) {
+                    parsed.directives.put(part.substring(0, directive).trim(), unquote(part.substring(directive + 2)));
+                } else if (attribute > 0) {
+                    String name = part.substring(0, attribute).trim();
+
+                    // drop the type of typed attributes, e.g. version:Version
+                    final int type = name.indexOf(':');
+                    if (type > 0) {
+                        name = name.substring(0, type).trim();
+                    }
+
+                    parsed.attributes.put(name, unquote(part.substring(attribute + 1)));
+                } else {
+                    parsed.paths.add(part.trim());
+                }
+            }
+
+            if (!parsed.paths.isEmpty() || !parsed.attributes.isEmpty() || !parsed.directives.isEmpty()) {
+                clauses.add(parsed);
+            }
+        }
+
+        return clauses;
+    }
+
+    /**
+     * @param header
+     *            the header value, may be <tt>null</tt>
+     * @return the first path of the first clause, e.g. the symbolic name of a
+     *         <tt>Bundle-SymbolicName</tt> header, or <tt>null</tt>
+     */
+    static String firstPath(final String header) {
+        final List<Clause> clauses = parse(header);
+
+        return (clauses.isEmpty() || clauses.get(0).paths.isEmpty()) ? null : clauses.get(0).paths.get(0);
+    }
+
+    /**
+     * Read the manifest of a bundle. The stream is not closed.
+     *
+     * @param in
+     *            the bundle contents
+     * @return the main attributes of the manifest or <tt>null</tt> if there is
+     *         none
+     * @throws IOException
+     *             if the bundle can not be read
+     */
+    static Attributes read(final InputStream in) throws IOException {
+        final JarInputStream jar = new JarInputStream(in, false);
+
+        Manifest manifest = jar.getManifest();
+        if (manifest == null) {
+            // the manifest is only found up front if it is one of the first
+            // entries.
+            for (ZipEntry entry = jar.getNextEntry(); entry != null; entry = jar.getNextEntry()) {
+                if (JarFile.MANIFEST_NAME.equalsIgnoreCase(entry.getName())) {
+                    manifest = new Manifest(jar);
+                    break;
+                }
+            }
+        }
+
+        return (manifest == null) ? null : manifest.getMainAttributes();
+    }
+
+    private static List<String> split(final String value, final char separator) {
+        final List<String> parts = new ArrayList<String>();
+
+        boolean quoted = false;
+        int begin = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                add(parts, value.substring(begin, i));
+                begin = i + 1;
+            }
+        }
+        add(parts, value.substring(begin));
+
+        return parts;
+    }
+
+    private static void add(final List<String> parts, final String part) {
+        final String trimmed = part.trim();
+        if (trimmed.length() > 0) {
+            parts.add(trimmed);
+        }
+    }
+
+    private static String unquote(final String value) {
+        final String trimmed = value.trim();
+        if (trimmed.length() >= 2 && trimmed.charAt(0) == '"' && trimmed.charAt(trimmed.length() - 1) == '"') {
+            return trimmed.substring(1, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+}
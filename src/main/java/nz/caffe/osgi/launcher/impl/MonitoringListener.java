@@ -0,0 +1,179 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+import nz.caffe.osgi.launcher.LaunchMonitor;
+import nz.caffe.osgi.launcher.LaunchMonitor.Operation;
+
+/**
+ * Reports the lifecycle operations which the framework performs on its own
+ * (resolving, and starting and stopping bundles as the start level changes)
+ * to a {@link LaunchMonitor}. Installs, updates and uninstalls are reported by
+ * the {@link AutoProcessor} which performs them, as are the starts it performs
+ * through {@link #start(Bundle, LaunchMonitor, int)}.
+ */
+final class MonitoringListener implements SynchronousBundleListener, FrameworkListener {
+
+    /**
+     * The bundle being started by {@link #start(Bundle, LaunchMonitor, int)}
+     * on this thread, whose start the listeners leave to it.
+     */
+    private static final ThreadLocal<Bundle> REPORTED_START = new ThreadLocal<Bundle>();
+
+    /**
+     * Register a new listener with the given system bundle context.
+     *
+     * @param context
+     *            the system bundle context
+     * @param monitor
+     *            the monitor to report to
+     */
+    static void register(final BundleContext context, final LaunchMonitor monitor) {
+        final MonitoringListener listener = new MonitoringListener(monitor);
+
+        context.addBundleListener(listener);
+        context.addFrameworkListener(listener);
+    }
+
+    /**
+     * Start a bundle and report the start once the bundle is active. A start
+     * which only marks the bundle to be started at a higher start level is
+     * reported when the framework performs it. Failures are left to the
+     * caller.
+     *
+     * @param bundle
+     *            the bundle
+     * @param monitor
+     *            the monitor to report to
+     * @param startLevel
+     *            the start level of the bundle
+     * @throws BundleException
+     *             if starting fails
+     */
+    static void start(final Bundle bundle, final LaunchMonitor monitor, final int startLevel)
+            throws BundleException {
+        final boolean active = bundle.getState() == Bundle.ACTIVE;
+        final long start = System.nanoTime();
+
+        REPORTED_START.set(bundle);
+        try {
+            bundle.start();
+        } finally {
+            REPORTED_START.remove();
+        }
+
+        if (!active && bundle.getState() == Bundle.ACTIVE) {
+            monitor.bundle(Operation.START, bundle.getLocation(), bundle, startLevel, start, System.nanoTime(), null);
+        }
+    }
+
+    /**
+     * @param bundle
+     *            the bundle
+     * @return the start level of the bundle, or <tt>-1</tt> if not known
+     */
+    static int startLevel(final Bundle bundle) {
+        if (bundle == null) {
+            return -1;
+        }
+
+        try {
+            final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+            return (bsl == null) ? -1 : bsl.getStartLevel();
+        } catch (@SuppressWarnings("unused") final IllegalStateException ex) {
+            // uninstalled
+            return -1;
+        }
+    }
+
+    private final LaunchMonitor monitor;
+
+    private final ConcurrentMap<Long, Long> pending = new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * @param monitor
+     */
+    private MonitoringListener(final LaunchMonitor monitor) {
+        super();
+        this.monitor = monitor;
+    }
+
+    public void bundleChanged(final BundleEvent event) {
+        final Bundle bundle = event.getBundle();
+
+        // the framework itself is reported as launch phases
+        if (bundle.getBundleId() == 0) {
+            return;
+        }
+
+        final Long id = Long.valueOf(bundle.getBundleId());
+
+        switch (event.getType()) {
+        case BundleEvent.STARTING:
+        case BundleEvent.STOPPING:
+            this.pending.put(id, Long.valueOf(System.nanoTime()));
+            break;
+        case BundleEvent.STARTED:
+            final Long started = this.pending.remove(id);
+            if (REPORTED_START.get() != bundle) {
+                report(Operation.START, bundle, started, null);
+            }
+            break;
+        case BundleEvent.STOPPED:
+            report(Operation.STOP, bundle, this.pending.remove(id), null);
+            break;
+        case BundleEvent.RESOLVED:
+            report(Operation.RESOLVE, bundle, null, null);
+            break;
+        default:
+            break;
+        }
+    }
+
+    public void frameworkEvent(final FrameworkEvent event) {
+        final Bundle bundle = event.getBundle();
+
+        if (event.getType() != FrameworkEvent.ERROR || bundle == null || bundle.getBundleId() == 0) {
+            return;
+        }
+
+        // an error for a bundle which is starting means its activator failed.
+        final Long started = this.pending.remove(Long.valueOf(bundle.getBundleId()));
+        if (started != null) {
+            report(Operation.START, bundle, started, event.getThrowable());
+        }
+    }
+
+    private void report(final Operation operation, final Bundle bundle, final Long startNanos,
+            final Throwable failure) {
+        final long now = System.nanoTime();
+        final long start = (startNanos == null) ? now : startNanos.longValue();
+
+        this.monitor.bundle(operation, bundle.getLocation(), bundle, startLevel(bundle), start, now, failure);
+    }
+}
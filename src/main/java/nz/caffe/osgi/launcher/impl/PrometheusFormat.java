@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.launch.Framework;
+
+import nz.caffe.osgi.launcher.LaunchMonitor.Operation;
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
+
+/**
+ * Writes the launcher metrics in the Prometheus text exposition format.
+ */
+public final class PrometheusFormat {
+
+    /**
+     * The content type of the Prometheus text exposition format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static String seconds(final long nanos) {
+        return Double.toString(nanos / 1e9d);
+    }
+
+    private static String label(final Enum<?> value) {
+        return value.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Write the metrics.
+     *
+     * @param metrics
+     *            the metrics to write
+     * @param out
+     *            the writer to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    public static void write(final LauncherMetrics metrics, final Writer out) throws IOException {
+        out.write("# HELP caffe_launcher_phase_duration_seconds Duration of the last run of each launch phase.\n");
+        out.write("# TYPE caffe_launcher_phase_duration_seconds gauge\n");
+        for (final Phase phase : Phase.values()) {
+            out.write("caffe_launcher_phase_duration_seconds{phase=\"" + label(phase) + "\"} "
+                    + seconds(metrics.getPhaseNanos(phase)) + "\n");
+        }
+
+        out.write("# HELP caffe_launcher_bundle_start_duration_seconds Time taken to start each bundle.\n");
+        out.write("# TYPE caffe_launcher_bundle_start_duration_seconds histogram\n");
+        final long[] buckets = metrics.getStartBuckets();
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i];
+            final String le = (i < LauncherMetrics.START_BUCKET_BOUNDS.length)
+                    ? seconds(LauncherMetrics.START_BUCKET_BOUNDS[i]) : "+Inf";
+            out.write("caffe_launcher_bundle_start_duration_seconds_bucket{le=\"" + le + "\"} " + cumulative + "\n");
+        }
+        out.write("caffe_launcher_bundle_start_duration_seconds_sum " + seconds(metrics.getStartHistogramSum())
+                + "\n");
+        out.write("caffe_launcher_bundle_start_duration_seconds_count " + metrics.getStartHistogramCount() + "\n");
+
+        out.write("# HELP caffe_launcher_bundle_operations_total Bundle lifecycle operations by outcome.\n");
+        out.write("# TYPE caffe_launcher_bundle_operations_total counter\n");
+        for (final Operation operation : Operation.values()) {
+            out.write("caffe_launcher_bundle_operations_total{operation=\"" + label(operation)
+                    + "\",outcome=\"success\"} " + metrics.getOperations(operation) + "\n");
+            out.write("caffe_launcher_bundle_operations_total{operation=\"" + label(operation)
+                    + "\",outcome=\"failure\"} " + metrics.getOperationFailures(operation) + "\n");
+        }
+
+        out.write("# HELP caffe_launcher_framework_restarts_total Framework restarts after an update.\n");
+        out.write("# TYPE caffe_launcher_framework_restarts_total counter\n");
+        out.write("caffe_launcher_framework_restarts_total " + metrics.getRestartCount() + "\n");
+
+        writeBundleStates(metrics.getFramework(), out);
+
+        out.flush();
+    }
+
+    private static void writeBundleStates(final Framework fwk, final Writer out) throws IOException {
+        final BundleContext context = (fwk == null) ? null : fwk.getBundleContext();
+        if (context == null) {
+            return;
+        }
+
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (final int state : new int[] { Bundle.ACTIVE, Bundle.INSTALLED, Bundle.RESOLVED, Bundle.STARTING,
+                Bundle.STOPPING }) {
+            counts.put(LauncherMetrics.stateName(state), Integer.valueOf(0));
+        }
+
+        for (final Bundle bundle : context.getBundles()) {
+            final String state = LauncherMetrics.stateName(bundle.getState());
+            final Integer count = counts.get(state);
+            counts.put(state, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+        }
+
+        out.write("# HELP caffe_launcher_bundles Installed bundles by state.\n");
+        out.write("# TYPE caffe_launcher_bundles gauge\n");
+        for (final Map.Entry<String, Integer> entry : counts.entrySet()) {
+            out.write("caffe_launcher_bundles{state=\"" + entry.getKey().toLowerCase(Locale.ENGLISH) + "\"} "
+                    + entry.getValue() + "\n");
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LoadCallback;
+
+/**
+ * Records the bundles of a provisioned framework storage area and the inputs
+ * they were deployed from, so that a launcher opening that storage can verify
+ * it and skip the auto-deploy processing. The inputs are the auto-deploy and
+ * repository configuration and the size and modification time of each bundle
+ * file, or the hash of its contents where it is not a plain file.
+ */
+final class ProvisioningManifest {
+
+    /**
+     * Name of the manifest file inside the framework storage directory.
+     */
+    static final String MANIFEST_FILE = "caffe-provisioned.properties";
+
+    private static final String COUNT_KEY = "bundles";
+
+    private static final String INPUT_PREFIX = "input.";
+
+    private static final String[] CONFIG_PREFIXES = { "caffe.auto.", "caffe.repository." };
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProvisioningManifest.class);
+
+    /**
+     * @param storageDir
+     *            the framework storage directory
+     * @return <tt>true</tt> if the storage area has a provisioning manifest
+     */
+    static boolean exists(final File storageDir) {
+        return new File(storageDir, MANIFEST_FILE).isFile();
+    }
+
+    /**
+     * Check that the bundles installed in the framework match those recorded
+     * when the storage area was provisioned.
+     *
+     * @param storageDir
+     *            the framework storage directory
+     * @param context
+     *            the system bundle context
+     * @param inputs
+     *            the current inputs, see
+     *            {@link #inputs(Map, DeploymentPlan, LoadCallback)}
+     * @return <tt>true</tt> if the storage area was provisioned from the same
+     *         inputs and is intact
+     */
+    static boolean verify(final File storageDir, final BundleContext context, final Properties inputs) {
+        final File file = new File(storageDir, MANIFEST_FILE);
+        if (!file.isFile()) {
+            return false;
+        }
+
+        final Properties expected = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            expected.load(in);
+        } catch (final IOException ex) {
+            LOG.warn("Unable to read provisioning manifest " + file, ex);
+            return false;
+        } finally {
+            BaseLauncher.closeQuietly(in);
+        }
+
+        final Properties actual = describe(context, inputs);
+        if (!expected.equals(actual)) {
+            LOG.warn("Framework storage {} does not match its provisioning manifest", storageDir);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write the manifest for the bundles currently installed in the framework.
+     *
+     * @param storageDir
+     *            the framework storage directory
+     * @param context
+     *            the system bundle context
+     * @param inputs
+     *            the inputs the bundles were deployed from
+     * @throws IOException
+     *             if writing the manifest fails
+     */
+    static void write(final File storageDir, final BundleContext context, final Properties inputs)
+            throws IOException {
+        final OutputStream out = new FileOutputStream(new File(storageDir, MANIFEST_FILE));
+        try {
+            describe(context, inputs).store(out, "Provisioned framework storage");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Fingerprint the inputs of the auto-deploy processing.
+     *
+     * @param configProps
+     *            the configuration properties
+     * @param plan
+     *            the deployment plan
+     * @param callback
+     *            the callback listing and reading the auto-deploy bundles
+     * @return the fingerprint
+     */
+    static Properties inputs(final Map<String, String> configProps, final DeploymentPlan plan,
+            final LoadCallback callback) {
+        final Properties props = new Properties();
+
+        for (final Map.Entry<String, String> entry : configProps.entrySet()) {
+            final String lowerKey = entry.getKey().toLowerCase(Locale.ENGLISH);
+            for (final String prefix : CONFIG_PREFIXES) {
+                if (lowerKey.startsWith(prefix)) {
+                    props.setProperty(INPUT_PREFIX + "config." + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        for (final DeploymentPlan.DirectoryStep step : plan.directories) {
+            for (final String path : callback.listBundles(step.directory)) {
+                props.setProperty(INPUT_PREFIX + "bundle." + path, fingerprint(path, callback));
+            }
+        }
+
+        if (plan.repository != null) {
+            final File[] files = plan.repository.directory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    if (file.isFile() && file.getName().endsWith(".jar")) {
+                        props.setProperty(INPUT_PREFIX + "repository." + file.getName(),
+                                file.length() + "/" + file.lastModified());
+                    }
+                }
+            }
+        }
+
+        return props;
+    }
+
+    private static String fingerprint(final String path, final LoadCallback callback) {
+        final File file = new File(path);
+        if (file.isFile()) {
+            return file.length() + "/" + file.lastModified();
+        }
+
+        // bundles read from an archive or elsewhere are hashed.
+        InputStream in = null;
+        try {
+            in = new DigestInputStream(callback.openStream(path), BundleFetcher.digest());
+            final byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // only read to hash
+            }
+            return BundleFetcher.hex(((DigestInputStream) in).getMessageDigest().digest());
+        } catch (final Exception ex) {
+            LOG.debug("Unable to read " + path + " to fingerprint it", ex);
+            return "unreadable";
+        } finally {
+            BaseLauncher.closeQuietly(in);
+        }
+    }
+
+    private static Properties describe(final BundleContext context, final Properties inputs) {
+        final Properties props = new Properties();
+        props.putAll(inputs);
+
+        int count = 0;
+        for (final Bundle bundle : context.getBundles()) {
+            if (bundle.getBundleId() == 0) {
+                continue;
+            }
+
+            final String prefix = "bundle." + bundle.getBundleId() + ".";
+            props.setProperty(prefix + "location", bundle.getLocation());
+            props.setProperty(prefix + "symbolicName", String.valueOf(bundle.getSymbolicName()));
+            props.setProperty(prefix + "version", bundle.getVersion().toString());
+            props.setProperty(prefix + "lastModified", Long.toString(bundle.getLastModified()));
+            count++;
+        }
+
+        props.setProperty(COUNT_KEY, Integer.toString(count));
+
+        return props;
+    }
+}
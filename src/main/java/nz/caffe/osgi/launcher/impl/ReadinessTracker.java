@@ -0,0 +1,326 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.util.tracker.BundleTracker;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.LaunchMonitor;
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
+
+/**
+ * Decides when the framework can actually serve requests: it has started, a
+ * service matches each configured filter and each configured bundle is
+ * active. Services are tracked by reference only, so tracking them does not
+ * activate lazy components. The first time all the conditions hold is
+ * reported to the launch monitor as the {@link Phase#READY} phase, measured
+ * from when the tracker was opened.
+ */
+public final class ReadinessTracker {
+
+    /**
+     * The property name prefix used to specify LDAP service filters which must
+     * each match a registered service before the framework is ready (e.g.,
+     * <tt>caffe.readiness.filter.1=(objectClass=javax.sql.DataSource)</tt>).
+     **/
+    public static final String READINESS_FILTER_PROPERTY = "caffe.readiness.filter";
+
+    /**
+     * The property name used to specify a comma-delimited list of bundle
+     * symbolic names which must be active before the framework is ready.
+     **/
+    public static final String READINESS_BUNDLES_PROPERTY = "caffe.readiness.bundles";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadinessTracker.class);
+
+    /**
+     * Open a new tracker with the given system bundle context.
+     *
+     * @param context
+     *            the system bundle context
+     * @param configProps
+     *            the configuration properties
+     * @param monitor
+     *            the monitor to report the time to ready to
+     * @return the tracker
+     * @throws InvalidSyntaxException
+     *             if a configured filter is invalid
+     */
+    static ReadinessTracker open(final BundleContext context, final Map<String, String> configProps,
+            final LaunchMonitor monitor) throws InvalidSyntaxException {
+        // with a start level ramp, the framework has only started once the
+        // ramp reaches its target.
+        final ReadinessTracker tracker = new ReadinessTracker(monitor,
+                (int) AutoProcessor.getLong(configProps, StartLevelRamp.RAMP_TARGET_PROPERTY, 0));
+
+        for (final Map.Entry<String, String> entry : configProps.entrySet()) {
+            final String key = entry.getKey();
+            if (key.startsWith(READINESS_FILTER_PROPERTY + ".")) {
+                tracker.filters.add(context.createFilter(entry.getValue().trim()));
+                tracker.serviceCounts.add(new AtomicInteger());
+            }
+        }
+
+        final String bundles = configProps.get(READINESS_BUNDLES_PROPERTY);
+        if (bundles != null) {
+            final StringTokenizer st = new StringTokenizer(bundles, ",");
+            while (st.hasMoreTokens()) {
+                final String symbolicName = st.nextToken().trim();
+                if (symbolicName.length() > 0) {
+                    tracker.bundles.put(symbolicName, new AtomicInteger());
+                }
+            }
+        }
+
+        tracker.track(context);
+
+        return tracker;
+    }
+
+    private BundleTracker<Bundle> bundleTracker;
+
+    private final Map<String, AtomicInteger> bundles = new HashMap<String, AtomicInteger>();
+
+    private final List<Filter> filters = new ArrayList<Filter>();
+
+    private final LaunchMonitor monitor;
+
+    private final long origin = System.nanoTime();
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private volatile long readyNanos = -1;
+
+    private final List<AtomicInteger> serviceCounts = new ArrayList<AtomicInteger>();
+
+    private final List<ServiceTracker<Object, ServiceReference<Object>>> serviceTrackers =
+            new ArrayList<ServiceTracker<Object, ServiceReference<Object>>>();
+
+    private volatile boolean started;
+
+    private final int target;
+
+    /**
+     * @param monitor
+     * @param target
+     */
+    private ReadinessTracker(final LaunchMonitor monitor, final int target) {
+        super();
+        this.monitor = monitor;
+        this.target = target;
+    }
+
+    /**
+     * Wait for the framework to become ready for the first time.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of the timeout
+     * @return <tt>true</tt> if the framework became ready
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean awaitReady(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return this.ready.await(timeout, unit);
+    }
+
+    /**
+     * @return the time taken for the framework to become ready for the first
+     *         time in milliseconds, or <tt>-1</tt> if it has not been ready yet
+     */
+    public long getTimeToReadyMillis() {
+        final long nanos = this.readyNanos;
+
+        return (nanos < 0) ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos - this.origin);
+    }
+
+    /**
+     * @return <tt>true</tt> if all the readiness conditions currently hold
+     */
+    public boolean isReady() {
+        if (!this.started) {
+            return false;
+        }
+
+        for (final AtomicInteger count : this.serviceCounts) {
+            if (count.get() <= 0) {
+                return false;
+            }
+        }
+
+        for (final AtomicInteger count : this.bundles.values()) {
+            if (count.get() <= 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Track the conditions again with the given system bundle context.
+     * Listeners and trackers do not survive a framework restart, so this is
+     * called again after each restart, before the framework is started. The
+     * framework is not ready until the conditions hold again, but the time to
+     * ready remains that of the first launch.
+     *
+     * @param context
+     *            the system bundle context
+     */
+    synchronized void reopen(final BundleContext context) {
+        this.started = false;
+
+        // the trackers of the stopped framework no longer see any changes.
+        for (final ServiceTracker<Object, ServiceReference<Object>> serviceTracker : this.serviceTrackers) {
+            serviceTracker.close();
+        }
+        this.serviceTrackers.clear();
+        if (this.bundleTracker != null) {
+            this.bundleTracker.close();
+            this.bundleTracker = null;
+        }
+
+        for (final AtomicInteger count : this.serviceCounts) {
+            count.set(0);
+        }
+        for (final AtomicInteger count : this.bundles.values()) {
+            count.set(0);
+        }
+
+        track(context);
+    }
+
+    private void check() {
+        if (this.ready.getCount() == 0 || !isReady()) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        synchronized (this) {
+            if (this.readyNanos >= 0) {
+                return;
+            }
+            this.readyNanos = now;
+        }
+
+        this.ready.countDown();
+        this.monitor.phase(Phase.READY, null, this.origin, now);
+
+        LOG.info("Framework ready after {} ms", Long.toString(getTimeToReadyMillis()));
+    }
+
+    private void track(final BundleContext context) {
+        for (int i = 0; i < this.filters.size(); i++) {
+            trackService(context, this.filters.get(i), this.serviceCounts.get(i));
+        }
+
+        if (!this.bundles.isEmpty()) {
+            trackBundles(context);
+        }
+
+        final FrameworkStartLevel fsl = context.getBundle().adapt(FrameworkStartLevel.class);
+
+        context.addFrameworkListener(new FrameworkListener() {
+            public void frameworkEvent(final FrameworkEvent event) {
+                if ((event.getType() == FrameworkEvent.STARTED || event.getType() == FrameworkEvent.STARTLEVEL_CHANGED)
+                        && fsl.getStartLevel() >= ReadinessTracker.this.target) {
+                    ReadinessTracker.this.started = true;
+                    check();
+                }
+            }
+        });
+
+        if (context.getBundle().getState() == Bundle.ACTIVE && fsl.getStartLevel() >= this.target) {
+            this.started = true;
+        }
+
+        for (final ServiceTracker<Object, ServiceReference<Object>> serviceTracker : this.serviceTrackers) {
+            serviceTracker.open();
+        }
+        if (this.bundleTracker != null) {
+            this.bundleTracker.open();
+        }
+
+        check();
+    }
+
+    private void trackBundles(final BundleContext context) {
+        this.bundleTracker = new BundleTracker<Bundle>(context, Bundle.ACTIVE, new BundleTrackerCustomizer<Bundle>() {
+            public Bundle addingBundle(final Bundle bundle, final BundleEvent event) {
+                final AtomicInteger count = ReadinessTracker.this.bundles.get(bundle.getSymbolicName());
+                if (count == null) {
+                    return null;
+                }
+
+                count.incrementAndGet();
+                check();
+                return bundle;
+            }
+
+            public void modifiedBundle(final Bundle bundle, final BundleEvent event, final Bundle object) {
+                // still active
+            }
+
+            public void removedBundle(final Bundle bundle, final BundleEvent event, final Bundle object) {
+                ReadinessTracker.this.bundles.get(bundle.getSymbolicName()).decrementAndGet();
+            }
+        });
+    }
+
+    private void trackService(final BundleContext context, final Filter filter, final AtomicInteger count) {
+        this.serviceTrackers.add(new ServiceTracker<Object, ServiceReference<Object>>(context, filter,
+                new ServiceTrackerCustomizer<Object, ServiceReference<Object>>() {
+                    public ServiceReference<Object> addingService(final ServiceReference<Object> reference) {
+                        count.incrementAndGet();
+                        check();
+                        return reference;
+                    }
+
+                    public void modifiedService(final ServiceReference<Object> reference,
+                            final ServiceReference<Object> service) {
+                        // still matches
+                    }
+
+                    public void removedService(final ServiceReference<Object> reference,
+                            final ServiceReference<Object> service) {
+                        count.decrementAndGet();
+                    }
+                }));
+    }
+}
@@ -0,0 +1,509 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.jar.Attributes;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.impl.ManifestHeader.Clause;
+
+/**
+ * Selects the bundles of a local repository needed by a set of root bundles:
+ * the roots and, transitively, the providers of their mandatory package
+ * imports, required bundles, required capabilities and fragment hosts.
+ * Requirements met by an installed bundle, including the system bundle, do
+ * not select anything. Among several providers, the highest version is
+ * chosen. The repository is a directory of jars with an index of their
+ * manifest headers, which is brought up to date with the directory before
+ * each resolve, so only new or changed jars are read.
+ */
+final class RepositoryResolver {
+
+    private static final class Capability {
+        final Map<String, Object> attributes;
+        final String namespace;
+        final Resource resource;
+
+        Capability(final String namespace, final Map<String, Object> attributes, final Resource resource) {
+            super();
+            this.namespace = namespace;
+            this.attributes = attributes;
+            this.resource = resource;
+        }
+    }
+
+    private static final class Requirement {
+        final Filter filter;
+        final String namespace;
+        final String text;
+
+        Requirement(final String namespace, final Filter filter, final String text) {
+            super();
+            this.namespace = namespace;
+            this.filter = filter;
+            this.text = text;
+        }
+    }
+
+    private static final class Resource {
+        final File file;
+        final List<Requirement> requirements = new ArrayList<Requirement>();
+        final String symbolicName;
+        final Version version;
+
+        Resource(final File file, final String symbolicName, final Version version) {
+            super();
+            this.file = file;
+            this.symbolicName = symbolicName;
+            this.version = version;
+        }
+
+        @Override
+        public String toString() {
+            return this.symbolicName + " " + this.version;
+        }
+    }
+
+    private static final String[] HEADERS = { Constants.BUNDLE_SYMBOLICNAME, Constants.BUNDLE_VERSION,
+            Constants.EXPORT_PACKAGE, Constants.IMPORT_PACKAGE, Constants.REQUIRE_BUNDLE,
+            Constants.PROVIDE_CAPABILITY, Constants.REQUIRE_CAPABILITY, Constants.FRAGMENT_HOST };
+
+    private static final String LAST_MODIFIED = ".lastModified";
+
+    private static final String LENGTH = ".length";
+
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryResolver.class);
+
+    /**
+     * Resolve the root bundles against the repository.
+     *
+     * @param directory
+     *            the repository directory
+     * @param indexFile
+     *            the index of the repository
+     * @param roots
+     *            the symbolic names of the root bundles, each optionally
+     *            with a <tt>version</tt> range
+     * @param context
+     *            the system bundle context
+     * @return the selected bundles, each after the bundles it depends on
+     */
+    static List<File> resolve(final File directory, final File indexFile, final String roots,
+            final BundleContext context) {
+        final RepositoryResolver resolver = new RepositoryResolver();
+
+        for (final Bundle bundle : context.getBundles()) {
+            final BundleRevision revision = bundle.adapt(BundleRevision.class);
+            if (revision != null) {
+                for (final BundleCapability capability : revision.getDeclaredCapabilities(null)) {
+                    resolver.add(new Capability(capability.getNamespace(), capability.getAttributes(), null));
+                }
+            }
+        }
+
+        resolver.resources.addAll(resolver.index(directory, indexFile));
+
+        for (final Clause clause : ManifestHeader.parse(roots)) {
+            for (final String name : clause.paths) {
+                final Requirement root = requirement(BundleNamespace.BUNDLE_NAMESPACE, name,
+                        BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE,
+                        clause.attributes.get(Constants.VERSION_ATTRIBUTE), "root " + name);
+
+                final Resource provider = resolver.provider(root);
+                if (provider != null) {
+                    resolver.visit(provider);
+                } else if (!resolver.isMet(root)) {
+                    resolver.unresolved.add("no bundle in the repository for " + root.text);
+                }
+            }
+        }
+
+        if (!resolver.unresolved.isEmpty()) {
+            final StringBuilder report = new StringBuilder();
+            report.append(resolver.unresolved.size()).append(" unresolved repository requirements:");
+            for (final String line : resolver.unresolved) {
+                report.append("\n    ").append(line);
+            }
+            LOG.warn(report.toString());
+        }
+
+        final List<File> files = new ArrayList<File>(resolver.ordered.size());
+        for (final Resource resource : resolver.ordered) {
+            files.add(resource.file);
+        }
+
+        LOG.debug("Selected {} of {} repository bundles: {}", new Object[] { Integer.toString(files.size()),
+                Integer.toString(resolver.resources.size()), resolver.ordered });
+
+        return files;
+    }
+
+    private static Requirement requirement(final String namespace, final String name, final String versionAttribute,
+            final String range, final String text) {
+        final StringBuilder filter = new StringBuilder();
+        filter.append("(&(").append(namespace).append('=').append(name).append(')');
+        if (range != null) {
+            try {
+                filter.append(new VersionRange(range).toFilterString(versionAttribute));
+            } catch (final IllegalArgumentException ex) {
+                LOG.debug("Ignoring invalid version range " + range + " of " + text, ex);
+            }
+        }
+        filter.append(')');
+
+        return new Requirement(namespace, createFilter(filter.toString(), text), text);
+    }
+
+    private static Filter createFilter(final String filter, final String text) {
+        try {
+            return FrameworkUtil.createFilter(filter);
+        } catch (final InvalidSyntaxException ex) {
+            LOG.debug("Ignoring invalid filter " + filter + " of " + text, ex);
+            return null;
+        }
+    }
+
+    private static boolean isOptional(final Clause clause) {
+        return Constants.RESOLUTION_OPTIONAL.equals(clause.directives.get(Constants.RESOLUTION_DIRECTIVE));
+    }
+
+    private static Version version(final String value) {
+        try {
+            return Version.parseVersion(value);
+        } catch (@SuppressWarnings("unused") final IllegalArgumentException ex) {
+            return Version.emptyVersion;
+        }
+    }
+
+    private final Map<String, List<Capability>> capabilities = new HashMap<String, List<Capability>>();
+
+    private final List<Resource> ordered = new ArrayList<Resource>();
+
+    private final List<Resource> resources = new ArrayList<Resource>();
+
+    private final Set<Resource> selected = new LinkedHashSet<Resource>();
+
+    private final List<String> unresolved = new ArrayList<String>();
+
+    private RepositoryResolver() {
+        super();
+    }
+
+    private void add(final Capability capability) {
+        List<Capability> list = this.capabilities.get(capability.namespace);
+        if (list == null) {
+            list = new ArrayList<Capability>();
+            this.capabilities.put(capability.namespace, list);
+        }
+        list.add(capability);
+    }
+
+    /**
+     * @return the provider to select for the requirement, or <tt>null</tt> if
+     *         it is already met or can not be met
+     */
+    private Resource provider(final Requirement requirement) {
+        final List<Capability> candidates = this.capabilities.get(requirement.namespace);
+        if (candidates == null) {
+            return null;
+        }
+
+        Resource best = null;
+        for (final Capability capability : candidates) {
+            if (requirement.filter != null && !requirement.filter.matches(capability.attributes)) {
+                continue;
+            }
+
+            // met by an installed or an already selected bundle.
+            if (capability.resource == null || this.selected.contains(capability.resource)) {
+                return null;
+            }
+
+            if (best == null || capability.resource.version.compareTo(best.version) > 0) {
+                best = capability.resource;
+            }
+        }
+
+        return best;
+    }
+
+    private boolean isMet(final Requirement requirement) {
+        final List<Capability> candidates = this.capabilities.get(requirement.namespace);
+        if (candidates != null) {
+            for (final Capability capability : candidates) {
+                if (requirement.filter == null || requirement.filter.matches(capability.attributes)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void visit(final Resource resource) {
+        if (!this.selected.add(resource)) {
+            return;
+        }
+
+        for (final Requirement requirement : resource.requirements) {
+            final Resource provider = provider(requirement);
+            if (provider != null) {
+                visit(provider);
+            } else if (!isMet(requirement)) {
+                this.unresolved.add(resource + " requires " + requirement.text);
+            }
+        }
+
+        // providers come first, so they are installed before their
+        // dependents.
+        this.ordered.add(resource);
+    }
+
+    private List<Resource> index(final File directory, final File indexFile) {
+        final Properties index = new Properties();
+        if (indexFile.isFile()) {
+            try {
+                final InputStream in = new FileInputStream(indexFile);
+                try {
+                    index.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (final IOException ex) {
+                LOG.warn("Unable to read the repository index " + indexFile + ", rebuilding it", ex);
+                index.clear();
+            }
+        }
+
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            LOG.warn("Repository directory {} can not be listed", directory);
+            return new ArrayList<Resource>();
+        }
+        Arrays.sort(files);
+
+        final Properties current = new Properties();
+        boolean changed = false;
+        final List<Resource> list = new ArrayList<Resource>();
+
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!file.isFile() || !name.toLowerCase(Locale.ENGLISH).endsWith(".jar")) {
+                continue;
+            }
+
+            final String lastModified = Long.toString(file.lastModified());
+            final String length = Long.toString(file.length());
+
+            if (lastModified.equals(index.getProperty(name + LAST_MODIFIED))
+                    && length.equals(index.getProperty(name + LENGTH))) {
+                for (final String header : HEADERS) {
+                    final String value = index.getProperty(name + "." + header);
+                    if (value != null) {
+                        current.setProperty(name + "." + header, value);
+                    }
+                }
+            } else {
+                changed = true;
+                final Attributes headers = readHeaders(file);
+                if (headers != null) {
+                    for (final String header : HEADERS) {
+                        final String value = headers.getValue(header);
+                        if (value != null) {
+                            current.setProperty(name + "." + header, value);
+                        }
+                    }
+                }
+            }
+
+            current.setProperty(name + LAST_MODIFIED, lastModified);
+            current.setProperty(name + LENGTH, length);
+
+            final Resource resource = resource(file, current);
+            if (resource != null) {
+                list.add(resource);
+            }
+        }
+
+        // jars removed from the directory also change the index.
+        if (changed || current.size() != index.size()) {
+            try {
+                store(current, indexFile);
+            } catch (final IOException ex) {
+                LOG.warn("Unable to write the repository index " + indexFile, ex);
+            }
+        }
+
+        return list;
+    }
+
+    private Resource resource(final File file, final Properties index) {
+        final String name = file.getName();
+        final String symbolicName = ManifestHeader.firstPath(index.getProperty(name + "."
+                + Constants.BUNDLE_SYMBOLICNAME));
+        if (symbolicName == null) {
+            return null;
+        }
+
+        final Resource resource = new Resource(file, symbolicName,
+                version(index.getProperty(name + "." + Constants.BUNDLE_VERSION)));
+
+        final Map<String, Object> identity = new HashMap<String, Object>();
+        identity.put(BundleNamespace.BUNDLE_NAMESPACE, symbolicName);
+        identity.put(BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, resource.version);
+        add(new Capability(BundleNamespace.BUNDLE_NAMESPACE, identity, resource));
+
+        for (final Clause clause : ManifestHeader.parse(index.getProperty(name + "." + Constants.EXPORT_PACKAGE))) {
+            final String version = clause.attributes.get(Constants.VERSION_ATTRIBUTE);
+            for (final String pkg : clause.paths) {
+                final Map<String, Object> attributes = new HashMap<String, Object>(clause.attributes);
+                attributes.put(PackageNamespace.PACKAGE_NAMESPACE, pkg);
+                attributes.put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE,
+                        (version == null) ? Version.emptyVersion : version(version));
+                attributes.put(PackageNamespace.CAPABILITY_BUNDLE_SYMBOLICNAME_ATTRIBUTE, symbolicName);
+                attributes.put(PackageNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, resource.version);
+                add(new Capability(PackageNamespace.PACKAGE_NAMESPACE, attributes, resource));
+            }
+        }
+
+        for (final Clause clause : ManifestHeader
+                .parse(index.getProperty(name + "." + Constants.PROVIDE_CAPABILITY))) {
+            for (final String namespace : clause.paths) {
+                final Map<String, Object> attributes = new HashMap<String, Object>(clause.attributes);
+                final String version = clause.attributes.get(Constants.VERSION_ATTRIBUTE);
+                if (version != null) {
+                    attributes.put(Constants.VERSION_ATTRIBUTE, version(version));
+                }
+                add(new Capability(namespace, attributes, resource));
+            }
+        }
+
+        for (final Clause clause : ManifestHeader.parse(index.getProperty(name + "." + Constants.IMPORT_PACKAGE))) {
+            if (!isOptional(clause)) {
+                for (final String pkg : clause.paths) {
+                    resource.requirements.add(requirement(PackageNamespace.PACKAGE_NAMESPACE, pkg,
+                            PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE,
+                            clause.attributes.get(Constants.VERSION_ATTRIBUTE), "package " + pkg));
+                }
+            }
+        }
+
+        for (final Clause clause : ManifestHeader.parse(index.getProperty(name + "." + Constants.REQUIRE_BUNDLE))) {
+            if (!isOptional(clause)) {
+                for (final String bundle : clause.paths) {
+                    resource.requirements.add(requirement(BundleNamespace.BUNDLE_NAMESPACE, bundle,
+                            BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE,
+                            clause.attributes.get(Constants.BUNDLE_VERSION_ATTRIBUTE), "bundle " + bundle));
+                }
+            }
+        }
+
+        for (final Clause clause : ManifestHeader.parse(index.getProperty(name + "." + Constants.FRAGMENT_HOST))) {
+            for (final String host : clause.paths) {
+                resource.requirements.add(requirement(BundleNamespace.BUNDLE_NAMESPACE, host,
+                        BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE,
+                        clause.attributes.get(Constants.BUNDLE_VERSION_ATTRIBUTE), "host " + host));
+            }
+        }
+
+        for (final Clause clause : ManifestHeader
+                .parse(index.getProperty(name + "." + Constants.REQUIRE_CAPABILITY))) {
+            final String effective = clause.directives.get(Constants.EFFECTIVE_DIRECTIVE);
+            if (isOptional(clause) || (effective != null && !Constants.EFFECTIVE_RESOLVE.equals(effective))) {
+                continue;
+            }
+
+            final String filter = clause.directives.get(Constants.FILTER_DIRECTIVE);
+            for (final String namespace : clause.paths) {
+                // the execution environment and native code come from the
+                // framework.
+                if (!"osgi.ee".equals(namespace) && !"osgi.native".equals(namespace)) {
+                    final String text = namespace + ((filter == null) ? "" : " " + filter);
+                    resource.requirements.add(new Requirement(namespace,
+                            (filter == null) ? null : createFilter(filter, text), text));
+                }
+            }
+        }
+
+        return resource;
+    }
+
+    private static Attributes readHeaders(final File file) {
+        try {
+            final InputStream in = new FileInputStream(file);
+            try {
+                return ManifestHeader.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException ex) {
+            LOG.warn("Unable to read the manifest of " + file, ex);
+            return null;
+        }
+    }
+
+    private static void store(final Properties index, final File indexFile) throws IOException {
+        final File parent = indexFile.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        final File tmp = File.createTempFile("index", ".tmp", parent);
+
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            index.store(out, "caffe repository index");
+        } finally {
+            out.close();
+        }
+
+        // replace the index in one step where the platform allows it.
+        if (!tmp.renameTo(indexFile)) {
+            if (!indexFile.delete() || !tmp.renameTo(indexFile)) {
+                tmp.delete();
+                throw new IOException("Unable to write " + indexFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.launch.FrameworkFactory;
+
+import nz.caffe.osgi.launcher.LoadCallback;
+
+/**
+ * The immutable part of a launch: the parsed configuration properties, the
+ * discovered framework factory and the source of the bundles. A single
+ * instance can be used to launch several isolated frameworks in the same JVM
+ * (see {@link BaseLauncher#launch(SharedLaunchState)}), each of which keeps
+ * its own storage and start levels.
+ */
+public final class SharedLaunchState {
+
+    private final long configLoadEnd;
+
+    private final long configLoadStart;
+
+    private final Map<String, String> configProps;
+
+    private final FrameworkFactory factory;
+
+    private final LoadCallback loadCallback;
+
+    /**
+     * @param configProps
+     * @param factory
+     * @param loadCallback
+     * @param configLoadStart
+     * @param configLoadEnd
+     */
+    SharedLaunchState(final Map<String, String> configProps, final FrameworkFactory factory,
+            final LoadCallback loadCallback, final long configLoadStart, final long configLoadEnd) {
+        super();
+        this.configProps = Collections.unmodifiableMap(new HashMap<String, String>(configProps));
+        this.factory = factory;
+        this.loadCallback = loadCallback;
+        this.configLoadStart = configLoadStart;
+        this.configLoadEnd = configLoadEnd;
+    }
+
+    /**
+     * @return when loading the configuration ended, in nanoseconds
+     */
+    long getConfigLoadEnd() {
+        return this.configLoadEnd;
+    }
+
+    /**
+     * @return when loading the configuration started, in nanoseconds
+     */
+    long getConfigLoadStart() {
+        return this.configLoadStart;
+    }
+
+    /**
+     * @return the configuration properties - this map can not be modified.
+     */
+    public Map<String, String> getConfigProperties() {
+        return this.configProps;
+    }
+
+    /**
+     * @return the framework factory
+     */
+    public FrameworkFactory getFrameworkFactory() {
+        return this.factory;
+    }
+
+    /**
+     * @return the callback used to list and open bundles
+     */
+    public LoadCallback getLoadCallback() {
+        return this.loadCallback;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.BundleException;
+
+import nz.caffe.osgi.launcher.LoadCallback;
+import nz.caffe.osgi.launcher.ReferenceLoadCallback;
+
+/**
+ * Wraps another callback and remembers the directory listings and the bytes of
+ * every bundle it has opened, so that several frameworks launched from the
+ * same {@link SharedLaunchState} only scan and read each bundle once.
+ */
+final class StagingLoadCallback implements ReferenceLoadCallback {
+
+    private final LoadCallback delegate;
+
+    private final ConcurrentMap<String, List<String>> listings = new ConcurrentHashMap<String, List<String>>();
+
+    private final ConcurrentMap<String, byte[]> staged = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * @param delegate
+     */
+    StagingLoadCallback(final LoadCallback delegate) {
+        super();
+        this.delegate = delegate;
+    }
+
+    public List<String> listBundles(final String directory) {
+        List<String> bundles = this.listings.get(directory);
+
+        if (bundles == null) {
+            bundles = Collections.unmodifiableList(this.delegate.listBundles(directory));
+
+            final List<String> existing = this.listings.putIfAbsent(directory, bundles);
+            if (existing != null) {
+                bundles = existing;
+            }
+        }
+
+        return bundles;
+    }
+
+    public InputStream openStream(final String path) throws BundleException {
+        byte[] bytes = this.staged.get(path);
+
+        if (bytes == null) {
+            bytes = read(path);
+
+            final byte[] existing = this.staged.putIfAbsent(path, bytes);
+            if (existing != null) {
+                bytes = existing;
+            }
+        }
+
+        return new ByteArrayInputStream(bytes);
+    }
+
+    public String getReferenceLocation(final String path) {
+        return (this.delegate instanceof ReferenceLoadCallback)
+                ? ((ReferenceLoadCallback) this.delegate).getReferenceLocation(path) : null;
+    }
+
+    private byte[] read(final String path) throws BundleException {
+        final InputStream stream = this.delegate.openStream(path);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n != -1; n = stream.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+
+            return out.toByteArray();
+        } catch (final IOException ex) {
+            throw new BundleException("Unable to stage " + path, BundleException.UNSPECIFIED, ex);
+        } finally {
+            BaseLauncher.closeQuietly(stream);
+        }
+    }
+}
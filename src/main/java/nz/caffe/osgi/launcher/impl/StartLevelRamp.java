@@ -0,0 +1,308 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Raises the framework start level one level at a time instead of letting the
+ * framework jump to its beginning start level, so the bundle activators of
+ * different levels do not all compete for the CPU at once. The framework is
+ * started at level 1 and, after it has started, each further level waits for
+ * the configured gates: a minimum delay since the previous level, a quiet
+ * period without bundle or service changes, so the asynchronous activation
+ * of the previous level has settled, and the system load average per
+ * processor dropping below a threshold. A gate which does not open within the
+ * timeout is logged and passed, so the ramp never stalls the launch.
+ */
+public final class StartLevelRamp implements FrameworkListener {
+
+    /**
+     * The property name used to specify whether the start level is raised one
+     * level at a time.
+     **/
+    public static final String RAMP_PROPERTY = "caffe.startlevel.ramp";
+
+    /**
+     * The property name under which the launcher records the start level the
+     * ramp raises the framework to, taken from the beginning start level.
+     **/
+    public static final String RAMP_TARGET_PROPERTY = "caffe.startlevel.ramp.target";
+
+    /**
+     * The property name used to specify the minimum delay, in milliseconds,
+     * between raising two start levels.
+     **/
+    public static final String RAMP_DELAY_PROPERTY = "caffe.startlevel.ramp.delay";
+
+    /**
+     * The property name used to specify how long, in milliseconds, no bundle
+     * may change state and no service may be registered or unregistered
+     * before the next level is raised, so the bundles of the previous level
+     * have finished activating.
+     **/
+    public static final String RAMP_QUIET_PROPERTY = "caffe.startlevel.ramp.quiet";
+
+    /**
+     * The property name used to specify the system load average per processor
+     * (e.g. <tt>0.75</tt>) above which raising the next level waits.
+     **/
+    public static final String RAMP_LOAD_PROPERTY = "caffe.startlevel.ramp.load";
+
+    /**
+     * The property name used to specify how long, in milliseconds, a level
+     * waits for the quiet period and for the load to drop.
+     **/
+    public static final String RAMP_TIMEOUT_PROPERTY = "caffe.startlevel.ramp.timeout";
+
+    /**
+     * The property name used to specify how many bundles of a start level the
+     * framework may start concurrently.
+     **/
+    public static final String RAMP_THREADS_PROPERTY = "caffe.startlevel.ramp.threads";
+
+    /**
+     * The Equinox property for the number of threads starting the bundles of a
+     * start level.
+     */
+    private static final String EQUINOX_THREAD_COUNT = "equinox.start.level.thread.count";
+
+    private static final long DEFAULT_TIMEOUT = 60000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartLevelRamp.class);
+
+    private static final long POLL_INTERVAL = 50;
+
+    /**
+     * Configure a ramp from the configuration properties. The beginning start
+     * level is replaced with level 1 and recorded as the ramp target.
+     *
+     * @param configProps
+     *            the configuration properties, changed in place
+     * @return the ramp or <tt>null</tt> if it is not enabled or there is only
+     *         one level
+     */
+    static StartLevelRamp configure(final Map<String, String> configProps) {
+        if (!Boolean.parseBoolean(configProps.get(RAMP_PROPERTY))) {
+            return null;
+        }
+
+        final int target = (int) AutoProcessor.getLong(configProps, Constants.FRAMEWORK_BEGINNING_STARTLEVEL, 1);
+        if (target <= 1) {
+            return null;
+        }
+
+        configProps.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, "1");
+        configProps.put(RAMP_TARGET_PROPERTY, Integer.toString(target));
+
+        // frameworks which start the bundles of a level concurrently are
+        // capped; others start them one at a time anyway.
+        final String threads = configProps.get(RAMP_THREADS_PROPERTY);
+        if (threads != null && !configProps.containsKey(EQUINOX_THREAD_COUNT)) {
+            configProps.put(EQUINOX_THREAD_COUNT, threads.trim());
+        }
+
+        double load = 0;
+        final String loadValue = configProps.get(RAMP_LOAD_PROPERTY);
+        if (loadValue != null) {
+            try {
+                load = Double.parseDouble(loadValue.trim());
+            } catch (final NumberFormatException ex) {
+                LOG.warn("Invalid value for " + RAMP_LOAD_PROPERTY + ".", ex);
+            }
+        }
+
+        return new StartLevelRamp(target, AutoProcessor.getLong(configProps, RAMP_DELAY_PROPERTY, 0),
+                AutoProcessor.getLong(configProps, RAMP_QUIET_PROPERTY, 0), load,
+                AutoProcessor.getLong(configProps, RAMP_TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+    }
+
+    private static double loadAverage() {
+        // getSystemLoadAverage() is not available on every supported JVM.
+        try {
+            final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            final Method method = OperatingSystemMXBean.class.getMethod("getSystemLoadAverage");
+            return ((Double) method.invoke(os)).doubleValue() / os.getAvailableProcessors();
+        } catch (@SuppressWarnings("unused") final Exception ex) {
+            return -1;
+        }
+    }
+
+    private volatile BundleContext context;
+
+    private final long delayMillis;
+
+    private volatile long lastEvent = System.nanoTime();
+
+    private final double maxLoad;
+
+    private final long quietMillis;
+
+    private final int target;
+
+    private final long timeoutMillis;
+
+    private StartLevelRamp(final int target, final long delayMillis, final long quietMillis, final double maxLoad,
+            final long timeoutMillis) {
+        super();
+        this.target = target;
+        this.delayMillis = delayMillis;
+        this.quietMillis = quietMillis;
+        this.maxLoad = maxLoad;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void frameworkEvent(final FrameworkEvent event) {
+        if (event.getType() != FrameworkEvent.STARTED) {
+            return;
+        }
+
+        final BundleContext ctx = this.context;
+        final Thread thread = new Thread("Start Level Ramp") {
+            @Override
+            public void run() {
+                ramp(ctx);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Register the ramp with the given system bundle context. Listeners do not
+     * survive a framework restart, so this is called again after each
+     * restart, before the framework is started.
+     *
+     * @param ctx
+     *            the system bundle context
+     */
+    public void register(final BundleContext ctx) {
+        this.context = ctx;
+        ctx.addFrameworkListener(this);
+
+        if (this.quietMillis > 0) {
+            ctx.addBundleListener(new BundleListener() {
+                public void bundleChanged(final BundleEvent event) {
+                    StartLevelRamp.this.lastEvent = System.nanoTime();
+                }
+            });
+            ctx.addServiceListener(new ServiceListener() {
+                public void serviceChanged(final ServiceEvent event) {
+                    StartLevelRamp.this.lastEvent = System.nanoTime();
+                }
+            });
+        }
+    }
+
+    private boolean isRunning(final BundleContext ctx) {
+        return ctx.getBundle().getState() == Bundle.ACTIVE;
+    }
+
+    private void ramp(final BundleContext ctx) {
+        final FrameworkStartLevel fsl = ctx.getBundle().adapt(FrameworkStartLevel.class);
+        final long rampStart = System.nanoTime();
+
+        try {
+            for (int level = fsl.getStartLevel() + 1; level <= this.target && isRunning(ctx); level++) {
+                final long levelStart = System.nanoTime();
+
+                if (this.quietMillis > 0) {
+                    awaitQuiet();
+                }
+                if (this.maxLoad > 0) {
+                    awaitLoad();
+                }
+
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - levelStart);
+                if (elapsed < this.delayMillis) {
+                    Thread.sleep(this.delayMillis - elapsed);
+                }
+
+                final CountDownLatch changed = new CountDownLatch(1);
+                fsl.setStartLevel(level, new FrameworkListener() {
+                    public void frameworkEvent(final FrameworkEvent event) {
+                        changed.countDown();
+                    }
+                });
+                while (!changed.await(POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (!isRunning(ctx)) {
+                        return;
+                    }
+                }
+
+                LOG.debug("Raised start level to {} after {} ms", Integer.toString(level),
+                        Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - levelStart)));
+            }
+
+            LOG.info("Raised start level to {} in {} ms", Integer.toString(fsl.getStartLevel()),
+                    Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - rampStart)));
+        } catch (@SuppressWarnings("unused") final InterruptedException ex) {
+            Thread.currentThread().interrupt(); // reset flag
+        } catch (final IllegalStateException ex) {
+            // the framework stopped while ramping.
+            LOG.debug("Stopped raising the start level", ex);
+        }
+    }
+
+    private void awaitQuiet() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+        final long quietNanos = TimeUnit.MILLISECONDS.toNanos(this.quietMillis);
+
+        for (long quiet = System.nanoTime() - this.lastEvent; quiet < quietNanos; quiet = System.nanoTime()
+                - this.lastEvent) {
+            if (System.nanoTime() - deadline >= 0) {
+                LOG.warn("Bundles and services still changing after {} ms, raising the start level anyway",
+                        Long.toString(this.timeoutMillis));
+                return;
+            }
+
+            Thread.sleep(Math.min(POLL_INTERVAL, TimeUnit.NANOSECONDS.toMillis(quietNanos - quiet) + 1));
+        }
+    }
+
+    private void awaitLoad() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+
+        for (double load = loadAverage(); load > this.maxLoad; load = loadAverage()) {
+            if (System.nanoTime() - deadline >= 0) {
+                LOG.warn("Load average {} per processor is above {} after {} ms, raising the start level anyway",
+                        new Object[] { Double.toString(load), Double.toString(this.maxLoad),
+                                Long.toString(this.timeoutMillis) });
+                return;
+            }
+
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+}
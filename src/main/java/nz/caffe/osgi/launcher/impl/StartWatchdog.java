@@ -0,0 +1,194 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches bundles while they start. If a bundle takes longer than the start
+ * budget, the stack of the thread starting it is sampled until the start
+ * completes, and a profile of where the activator spent its time is then
+ * logged in the folded stack format (one line per distinct stack, frames
+ * separated by <tt>;</tt> from the root, followed by the sample count).
+ */
+final class StartWatchdog implements SynchronousBundleListener {
+
+    private static final class Watch implements Runnable {
+        final Bundle bundle;
+        ScheduledFuture<?> future;
+        final Map<String, Integer> samples = new HashMap<String, Integer>();
+        final long start = System.nanoTime();
+        final Thread thread;
+
+        Watch(final Bundle bundle, final Thread thread) {
+            super();
+            this.bundle = bundle;
+            this.thread = thread;
+        }
+
+        public void run() {
+            final StackTraceElement[] stack = this.thread.getStackTrace();
+            if (stack.length == 0) {
+                return;
+            }
+
+            final StringBuilder folded = new StringBuilder();
+            for (int i = stack.length - 1; i >= 0; i--) {
+                folded.append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+                if (i > 0) {
+                    folded.append(';');
+                }
+            }
+
+            final String key = folded.toString();
+            synchronized (this.samples) {
+                final Integer count = this.samples.get(key);
+                this.samples.put(key, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+            }
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartWatchdog.class);
+
+    /**
+     * Register a new watchdog with the given system bundle context.
+     *
+     * @param context
+     *            the system bundle context
+     * @param budgetMillis
+     *            how long a bundle may take to start before it is sampled
+     * @param intervalMillis
+     *            the sampling interval
+     */
+    static void register(final BundleContext context, final long budgetMillis, final long intervalMillis) {
+        context.addBundleListener(new StartWatchdog(budgetMillis, intervalMillis));
+    }
+
+    private final long budgetMillis;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "Bundle Start Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long intervalMillis;
+
+    private final ConcurrentMap<Long, Watch> watches = new ConcurrentHashMap<Long, Watch>();
+
+    /**
+     * @param budgetMillis
+     * @param intervalMillis
+     */
+    private StartWatchdog(final long budgetMillis, final long intervalMillis) {
+        super();
+        this.budgetMillis = budgetMillis;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void bundleChanged(final BundleEvent event) {
+        final Bundle bundle = event.getBundle();
+
+        if (bundle.getBundleId() == 0) {
+            // the framework is stopping, nothing else will start.
+            if (event.getType() == BundleEvent.STOPPING) {
+                this.executor.shutdownNow();
+            }
+            return;
+        }
+
+        final Long id = Long.valueOf(bundle.getBundleId());
+
+        switch (event.getType()) {
+        case BundleEvent.STARTING:
+            final Watch watch = new Watch(bundle, Thread.currentThread());
+            synchronized (watch) {
+                this.watches.put(id, watch);
+
+                if (!this.executor.isShutdown()) {
+                    watch.future = this.executor.scheduleAtFixedRate(watch, this.budgetMillis, this.intervalMillis,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+            break;
+        case BundleEvent.STARTED:
+        case BundleEvent.STOPPING:
+        case BundleEvent.STOPPED:
+            final Watch done = this.watches.remove(id);
+            if (done != null) {
+                finish(done);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void finish(final Watch watch) {
+        synchronized (watch) {
+            if (watch.future != null) {
+                watch.future.cancel(false);
+            }
+        }
+
+        final List<Entry<String, Integer>> profile;
+        synchronized (watch.samples) {
+            if (watch.samples.isEmpty()) {
+                return;
+            }
+
+            profile = new ArrayList<Entry<String, Integer>>(watch.samples.entrySet());
+        }
+
+        Collections.sort(profile, new Comparator<Entry<String, Integer>>() {
+            public int compare(final Entry<String, Integer> o1, final Entry<String, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+
+        final StringBuilder message = new StringBuilder();
+        for (final Entry<String, Integer> entry : profile) {
+            message.append('\n').append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+
+        LOG.warn("Bundle {} exceeded its start budget of {} ms and took {} ms; sampled stacks:{}",
+                new Object[] { watch.bundle.getLocation(), Long.toString(this.budgetMillis),
+                        Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - watch.start)),
+                        message });
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+
+import nz.caffe.osgi.launcher.LaunchMonitor;
+
+/**
+ * Records every launch phase and bundle operation as a span on the thread
+ * which performed it, relative to when the timeline was created.
+ */
+public final class StartupTimeline implements LaunchMonitor {
+
+    /**
+     * A recorded span. Marks have the same start and end.
+     */
+    static final class Span {
+        final String category;
+        final String detail;
+        final long end;
+        final String name;
+        final long start;
+        final long threadId;
+        final String threadName;
+
+        Span(final String category, final String name, final String detail, final long start, final long end) {
+            this(category, name, detail, start, end, Thread.currentThread());
+        }
+
+        Span(final String category, final String name, final String detail, final long start, final long end,
+                final Thread thread) {
+            super();
+            this.category = category;
+            this.name = name;
+            this.detail = detail;
+            this.start = start;
+            this.end = end;
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+        }
+    }
+
+    private static String millis(final long nanos) {
+        return Long.toString(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    private final long origin = System.nanoTime();
+
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<Span>();
+
+    public void bundle(final Operation operation, final String location, final Bundle bundle,
+            final int startLevel, final long startNanos, final long endNanos, final Throwable failure) {
+        final String symbolicName = (bundle == null) ? null : bundle.getSymbolicName();
+
+        final StringBuilder detail = new StringBuilder();
+        detail.append("location=").append(location).append(" startLevel=").append(startLevel);
+        if (failure != null) {
+            detail.append(" failure=").append(failure);
+        }
+
+        this.spans.add(new Span("bundle", operation.name().toLowerCase(Locale.ENGLISH) + " "
+                + ((symbolicName == null) ? location : symbolicName), detail.toString(), startNanos, endNanos));
+    }
+
+    /**
+     * @return how long ago the timeline was created, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.origin);
+    }
+
+    /**
+     * @param name
+     *            the name of a mark
+     * @return when the mark was first recorded, in milliseconds after the
+     *         timeline was created, or <tt>-1</tt> if it was not recorded
+     */
+    public long getMarkMillis(final String name) {
+        for (final Span span : getSpans()) {
+            if ("mark".equals(span.category) && span.name.equals(name)) {
+                return TimeUnit.NANOSECONDS.toMillis(span.start - this.origin);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Record a point in time, such as the framework becoming ready.
+     *
+     * @param name
+     *            the name of the mark
+     */
+    public void mark(final String name) {
+        final long now = System.nanoTime();
+        this.spans.add(new Span("mark", name, null, now, now));
+    }
+
+    public void phase(final Phase phase, final String detail, final long startNanos, final long endNanos) {
+        this.spans.add(new Span("launch", phase.name().toLowerCase(Locale.ENGLISH), detail, startNanos, endNanos));
+    }
+
+    /**
+     * Write the timeline as text, one span per line: the offset from the
+     * creation of the timeline and the duration (both in milliseconds), the
+     * category, the name and the thread.
+     *
+     * @param out
+     *            the writer to write to
+     * @throws IOException
+     *             if writing fails
+     */
+    public void write(final Writer out) throws IOException {
+        for (final Span span : getSpans()) {
+            out.write(millis(span.start - this.origin) + "\t" + millis(span.end - span.start) + "\t" + span.category
+                    + "\t" + span.name + "\t[" + span.threadName + "]");
+            if (span.detail != null) {
+                out.write("\t" + span.detail);
+            }
+            out.write("\n");
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Record a span which was performed on another thread.
+     *
+     * @param span
+     *            the span
+     */
+    void add(final Span span) {
+        this.spans.add(span);
+    }
+
+    /**
+     * @return when the timeline was created, in nanoseconds
+     */
+    long getOrigin() {
+        return this.origin;
+    }
+
+    /**
+     * @return the spans ordered by their start
+     */
+    List<Span> getSpans() {
+        final List<Span> sorted = new ArrayList<Span>(this.spans);
+        Collections.sort(sorted, new Comparator<Span>() {
+            public int compare(final Span o1, final Span o2) {
+                final long d = o1.start - o2.start;
+                return (d < 0) ? -1 : ((d == 0) ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nz.caffe.osgi.launcher.impl.StartupTimeline.Span;
+
+/**
+ * Adds the start levels to a startup timeline and writes it in the Chrome
+ * trace event format once the framework has started. Frameworks do not report
+ * each level they pass while starting, so a level is taken to begin when the
+ * first of its bundles starts and to end when a bundle of another level starts,
+ * the framework reports a start level change or the framework has started.
+ * Each level is recorded on the thread which started its bundles, so a single
+ * slow activator holding up a level is visible.
+ */
+final class StartupTracer implements SynchronousBundleListener, FrameworkListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupTracer.class);
+
+    /**
+     * Register a new tracer with the given system bundle context.
+     *
+     * @param context
+     *            the system bundle context
+     * @param timeline
+     *            the timeline receiving the launch phases and bundle
+     *            operations
+     * @param file
+     *            the file to write the trace to
+     */
+    static void register(final BundleContext context, final StartupTimeline timeline, final File file) {
+        final StartupTracer tracer = new StartupTracer(timeline, file);
+
+        context.addBundleListener(tracer);
+        context.addFrameworkListener(tracer);
+    }
+
+    private final File file;
+
+    private int level = -1;
+
+    private long levelStart;
+
+    private Thread levelThread;
+
+    private volatile boolean started;
+
+    private final StartupTimeline timeline;
+
+    /**
+     * @param timeline
+     * @param file
+     */
+    private StartupTracer(final StartupTimeline timeline, final File file) {
+        super();
+        this.timeline = timeline;
+        this.file = file;
+    }
+
+    public void bundleChanged(final BundleEvent event) {
+        final Bundle bundle = event.getBundle();
+        if (event.getType() != BundleEvent.STARTING || bundle.getBundleId() == 0) {
+            return;
+        }
+
+        final int bundleLevel = bundle.adapt(BundleStartLevel.class).getStartLevel();
+
+        synchronized (this) {
+            if (bundleLevel != this.level) {
+                final long now = System.nanoTime();
+                endLevel(now);
+
+                this.level = bundleLevel;
+                this.levelStart = now;
+            }
+
+            // bundles are started by the framework's start level thread.
+            this.levelThread = Thread.currentThread();
+        }
+    }
+
+    public void frameworkEvent(final FrameworkEvent event) {
+        switch (event.getType()) {
+        case FrameworkEvent.STARTLEVEL_CHANGED:
+            synchronized (this) {
+                endLevel(System.nanoTime());
+            }
+
+            // levels raised after the framework has started, e.g. by the
+            // start level ramp, are added to the trace.
+            if (this.started) {
+                write();
+            }
+            break;
+        case FrameworkEvent.STARTED:
+            synchronized (this) {
+                endLevel(System.nanoTime());
+            }
+            this.timeline.mark("started");
+            this.started = true;
+
+            write();
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void endLevel(final long now) {
+        if (this.level < 0) {
+            return;
+        }
+
+        this.timeline.add(new Span("startlevel", "start level " + this.level, null, this.levelStart, now,
+                this.levelThread));
+        this.level = -1;
+    }
+
+    private void write() {
+        try {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(this.file), "UTF-8");
+            try {
+                ChromeTraceFormat.write(this.timeline, out);
+            } finally {
+                out.close();
+            }
+
+            LOG.info("Wrote startup trace to {}", this.file);
+        } catch (final IOException ex) {
+            LOG.warn("Unable to write startup trace to " + this.file, ex);
+        }
+    }
+}
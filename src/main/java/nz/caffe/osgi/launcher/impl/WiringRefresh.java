@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.impl;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Refreshes the wiring of a set of bundles in one batch and waits for the
+ * framework to finish.
+ */
+final class WiringRefresh {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WiringRefresh.class);
+
+    /**
+     * Refresh the given bundles, and the bundles depending on them, and wait
+     * for the <tt>PACKAGES_REFRESHED</tt> event.
+     *
+     * @param context
+     *            the system bundle context
+     * @param bundles
+     *            the bundles which were updated, uninstalled or installed
+     * @param timeoutMillis
+     *            how long to wait for the refresh to complete
+     * @return <tt>true</tt> if the refresh completed in time
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    static boolean refresh(final BundleContext context, final Collection<Bundle> bundles, final long timeoutMillis)
+            throws InterruptedException {
+        if (bundles.isEmpty()) {
+            return true;
+        }
+
+        final long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        context.getBundle().adapt(FrameworkWiring.class).refreshBundles(bundles, new FrameworkListener() {
+            public void frameworkEvent(final FrameworkEvent event) {
+                if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+                    done.countDown();
+                }
+            }
+        });
+
+        final boolean completed = done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        if (completed) {
+            LOG.debug("Refreshed {} bundles in {} ms", Integer.toString(bundles.size()),
+                    Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        } else {
+            LOG.warn("Refreshing {} bundles did not complete within {} ms", Integer.toString(bundles.size()),
+                    Long.toString(timeoutMillis));
+        }
+
+        return completed;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nz.caffe.osgi.launcher.impl.FrameworkEventStream;
+import nz.caffe.osgi.launcher.impl.FrameworkEventStream.Event;
+import nz.caffe.osgi.launcher.impl.FrameworkEventStream.Subscription;
+
+/**
+ * Streams the framework, bundle and service events to the client as
+ * server-sent events, one JSON object per event. Each client holds a request
+ * thread for as long as it is connected. Registered by
+ * {@link FrameworkLoaderListener} when the
+ * {@link FrameworkLoaderListener#EVENT_STREAM_SERVLET_MAPPING_PARAM} context
+ * parameter is set.
+ */
+public final class EventStreamServlet extends HttpServlet {
+
+    private static final long KEEP_ALIVE_SECONDS = 15;
+
+    private static final long serialVersionUID = 1L;
+
+    private final int bufferSize;
+
+    private final transient FrameworkEventStream eventStream;
+
+    /**
+     * @param eventStream
+     * @param bufferSize
+     *            how many events to buffer for each client
+     */
+    public EventStreamServlet(final FrameworkEventStream eventStream, final int bufferSize) {
+        super();
+        this.eventStream = eventStream;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
+            throws ServletException, IOException {
+        final Subscription subscription;
+        try {
+            subscription = this.eventStream.subscribe(this.bufferSize);
+        } catch (@SuppressWarnings("unused") final IllegalStateException ex) {
+            // the framework is shutting down.
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+
+        final PrintWriter out = resp.getWriter();
+        out.flush();
+
+        try {
+            while (!subscription.isClosed()) {
+                final Event event = subscription.poll(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+
+                if (event == null) {
+                    out.write(": keep-alive\n\n");
+                } else {
+                    out.write("event: " + event.getType() + "\ndata: " + event.toJson() + "\n\n");
+                }
+                out.flush();
+
+                // the writer swallows exceptions, so this is how a client
+                // disconnecting shows up.
+                if (out.checkError()) {
+                    break;
+                }
+            }
+        } catch (@SuppressWarnings("unused") final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscription.close();
+        }
+    }
+}
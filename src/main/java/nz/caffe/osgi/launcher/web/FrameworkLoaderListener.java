@@ -16,24 +16,33 @@
 package nz.caffe.osgi.launcher.web;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.Servlet;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRegistration;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.launch.Framework;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import nz.caffe.osgi.launcher.Launcher;
+import nz.caffe.osgi.launcher.LaunchMonitor.Phase;
 import nz.caffe.osgi.launcher.impl.FrameworkEventPollingCallable;
+import nz.caffe.osgi.launcher.impl.FrameworkEventStream;
+import nz.caffe.osgi.launcher.impl.LauncherMetrics;
+import nz.caffe.osgi.launcher.impl.ReadinessTracker;
 
 /**
  * This starts the framework when deploying inside a WAR file.
@@ -61,6 +70,44 @@ public final class FrameworkLoaderListener implements ServletContextListener {
      */
     public static final String FRAMEWORK_ATTRIBUTE = FrameworkLoaderListener.class.getName() + ".FWK";
 
+    /**
+     * Name of servlet context parameter (i.e., {@value}) that can specify a
+     * URL pattern (e.g. <tt>/metrics</tt>) under which to register a
+     * {@link MetricsServlet}. By default no metrics servlet is registered.
+     */
+    public static final String METRICS_SERVLET_MAPPING_PARAM = "metricsServletMapping";
+
+    /**
+     * Name of servlet context parameter (i.e., {@value}) that can specify a
+     * URL pattern (e.g. <tt>/events</tt>) under which to register an
+     * {@link EventStreamServlet}. By default no event stream servlet is
+     * registered.
+     */
+    public static final String EVENT_STREAM_SERVLET_MAPPING_PARAM = "eventStreamServletMapping";
+
+    /**
+     * Name of servlet context parameter (i.e., {@value}) that can specify how
+     * many events to buffer for each event stream client before dropping them.
+     * Must be positive. Default is 256.
+     */
+    public static final String EVENT_STREAM_BUFFER_SIZE_PARAM = "eventStreamBufferSize";
+
+    /**
+     * Name of servlet context parameter (i.e., {@value}) that can specify a
+     * URL pattern (e.g. <tt>/ready</tt>) under which to register a
+     * {@link ReadinessServlet}. By default no readiness servlet is registered.
+     */
+    public static final String READINESS_SERVLET_MAPPING_PARAM = "readinessServletMapping";
+
+    /**
+     * Name of servlet context parameter (i.e., {@value}) that can specify how
+     * long, in milliseconds, to wait for the framework to become ready before
+     * completing the context initialisation, so the container only serves
+     * requests once the framework can handle them. By default the
+     * initialisation does not wait.
+     */
+    public static final String READINESS_TIMEOUT_PARAM = "readinessTimeout";
+
     /**
      * Name of servlet context parameter (i.e., {@value}) that can specify
      * whether to use the servlet context's temp dir attribute (
@@ -68,6 +115,8 @@ public final class FrameworkLoaderListener implements ServletContextListener {
      */
     public static final String USE_SERVLET_CONTEXT_TEMP_DIR_PARAM = "useServletContextTempDir";
 
+    private static final int DEFAULT_EVENT_STREAM_BUFFER_SIZE = 256;
+
     /**
      * Obtain the framework instance for the current thread (i.e. for the
      * current thread's context ClassLoader, which needs to be the web
@@ -86,6 +135,8 @@ public final class FrameworkLoaderListener implements ServletContextListener {
         return currentInstance;
     }
 
+    private FrameworkEventStream eventStream;
+
     private Framework framework;
 
     private Future<?> future;
@@ -106,6 +157,11 @@ public final class FrameworkLoaderListener implements ServletContextListener {
                 this.pool.shutdown();
             }
 
+            // release the request threads of connected event stream clients.
+            if (this.eventStream != null) {
+                this.eventStream.close();
+            }
+
             try {
                 if (this.framework != null) {
                     this.framework.stop();
@@ -125,9 +181,21 @@ public final class FrameworkLoaderListener implements ServletContextListener {
 
         } finally {
             if (this.shutdownHook != null) {
-                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+                try {
+                    Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+                } catch (@SuppressWarnings("unused") final IllegalStateException e) {
+                    // shutdown already in progress
+                }
             }
 
+            // drop every reference so nothing from this deployment is
+            // retained if the container keeps the listener instance.
+            this.eventStream = null;
+            this.framework = null;
+            this.future = null;
+            this.pool = null;
+            this.shutdownHook = null;
+
             final ClassLoader ccl = Thread.currentThread().getContextClassLoader();
             if (ccl == FrameworkLoaderListener.class.getClassLoader()) {
                 currentInstance = null;
@@ -137,9 +205,12 @@ public final class FrameworkLoaderListener implements ServletContextListener {
 
             sce.getServletContext().removeAttribute(FRAMEWORK_ATTRIBUTE);
             sce.getServletContext().removeAttribute(BundleContext.class.getName());
+            sce.getServletContext().removeAttribute(ReadinessTracker.class.getName());
             if (interrupted) {
                 Thread.currentThread().interrupt(); // reset flag
             }
+
+            logResourceUsage();
         }
     }
 
@@ -203,6 +274,60 @@ public final class FrameworkLoaderListener implements ServletContextListener {
         }
     }
 
+    /**
+     * Log the JVM resource usage after a context has been destroyed, so that
+     * leaks across repeated redeploys show up as a trend in the log.
+     */
+    private void logResourceUsage() {
+        if (this.logger.isDebugEnabled()) {
+            final MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+
+            this.logger.debug("After shutdown: {} live threads, {} classes loaded, {} bytes non-heap memory used",
+                    new Object[] { Integer.toString(ManagementFactory.getThreadMXBean().getThreadCount()),
+                            Integer.toString(ManagementFactory.getClassLoadingMXBean().getLoadedClassCount()),
+                            Long.toString(nonHeap.getUsed()) });
+        }
+    }
+
+    /**
+     * @return the value of the init parameter, or the default if it is not
+     *         set or not a number
+     */
+    private long getLongParameter(final ServletContext servletContext, final String name, final long defaultValue) {
+        final String value = servletContext.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException ex) {
+            this.logger.warn("Invalid value for " + name + ".", ex);
+            return defaultValue;
+        }
+    }
+
+    private void registerServlet(final ServletContext servletContext, final Servlet servlet, final String mapping) {
+        final String name = servlet.getClass().getName();
+
+        try {
+            final ServletRegistration.Dynamic registration = servletContext.addServlet(name, servlet);
+
+            if (registration == null) {
+                this.logger.warn("A servlet named {} is already registered", name);
+                return;
+            }
+
+            registration.addMapping(mapping);
+
+            this.logger.debug("Registered {} with mapping {}", name, mapping);
+        } catch (final UnsupportedOperationException ex) {
+            this.logger.warn("Unable to register " + name, ex);
+        } catch (final IllegalStateException ex) {
+            this.logger.warn("Unable to register " + name, ex);
+        }
+    }
+
     private void createFrameworkInstance(final ServletContext servletContext) throws Exception {
         final String useServletContextTempDirConfig = servletContext
                 .getInitParameter(USE_SERVLET_CONTEXT_TEMP_DIR_PARAM);
@@ -228,23 +353,71 @@ public final class FrameworkLoaderListener implements ServletContextListener {
             cacheDir = null;
         }
 
-        final Launcher launcher = new WarLauncher(null, cacheDir == null ? null : cacheDir.getAbsolutePath(),
+        final WarLauncher launcher = new WarLauncher(null, cacheDir == null ? null : cacheDir.getAbsolutePath(),
                 new ServletContextCallback(servletContext), servletContext);
 
+        final String metricsMapping = servletContext.getInitParameter(METRICS_SERVLET_MAPPING_PARAM);
+        final LauncherMetrics metrics = (metricsMapping == null) ? null : launcher.enableMetrics();
+
+        final String eventStreamMapping = servletContext.getInitParameter(EVENT_STREAM_SERVLET_MAPPING_PARAM);
+        if (eventStreamMapping != null) {
+            this.eventStream = launcher.enableEventStream();
+        }
+
         launcher.launch();
 
+        if (metrics != null) {
+            registerServlet(servletContext, new MetricsServlet(metrics), metricsMapping);
+        }
+
+        if (this.eventStream != null) {
+            long bufferSize = getLongParameter(servletContext, EVENT_STREAM_BUFFER_SIZE_PARAM,
+                    DEFAULT_EVENT_STREAM_BUFFER_SIZE);
+            if (bufferSize <= 0 || bufferSize > Integer.MAX_VALUE) {
+                this.logger.warn("Invalid value {} for {}, using {}", new Object[] { Long.toString(bufferSize),
+                        EVENT_STREAM_BUFFER_SIZE_PARAM, Integer.toString(DEFAULT_EVENT_STREAM_BUFFER_SIZE) });
+                bufferSize = DEFAULT_EVENT_STREAM_BUFFER_SIZE;
+            }
+
+            registerServlet(servletContext, new EventStreamServlet(this.eventStream, (int) bufferSize),
+                    eventStreamMapping);
+        }
+
+        final ReadinessTracker readiness = launcher.getReadiness();
+        servletContext.setAttribute(ReadinessTracker.class.getName(), readiness);
+
+        final String readinessMapping = servletContext.getInitParameter(READINESS_SERVLET_MAPPING_PARAM);
+        if (readinessMapping != null) {
+            registerServlet(servletContext, new ReadinessServlet(readiness), readinessMapping);
+        }
+
         final Framework fwk = launcher.getFramework();
         final Thread hook = launcher.getShutdownHook();
 
         this.framework = fwk;
         this.shutdownHook = hook;
 
+        final long start = System.nanoTime();
         fwk.start();
+        launcher.getLaunchMonitor().phase(Phase.FRAMEWORK_START, null, start, System.nanoTime());
 
-        final Callable<Object> worker = new FrameworkEventPollingCallable(fwk, hook);
+        final Callable<Object> worker = new FrameworkEventPollingCallable(launcher);
 
-        this.pool = Executors.newFixedThreadPool(1);
+        // the polling thread must not outlive the deployment, so give it a
+        // recognisable name and never let it hold up the JVM exiting.
+        this.pool = Executors.newFixedThreadPool(1, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "OSGi Framework Event Polling");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
 
         this.future = this.pool.submit(worker);
+
+        final long readinessTimeout = getLongParameter(servletContext, READINESS_TIMEOUT_PARAM, -1);
+        if (readinessTimeout >= 0 && !readiness.awaitReady(readinessTimeout, TimeUnit.MILLISECONDS)) {
+            this.logger.warn("OSGi Framework was not ready after {} ms", Long.toString(readinessTimeout));
+        }
     }
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.web;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nz.caffe.osgi.launcher.impl.ReadinessTracker;
+
+/**
+ * Answers readiness probes: <tt>200</tt> when the framework is ready to serve
+ * requests, <tt>503</tt> otherwise. Registered by
+ * {@link FrameworkLoaderListener} when the
+ * {@link FrameworkLoaderListener#READINESS_SERVLET_MAPPING_PARAM} context
+ * parameter is set.
+ */
+public final class ReadinessServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ReadinessTracker readiness;
+
+    /**
+     * @param readiness
+     */
+    public ReadinessServlet(final ReadinessTracker readiness) {
+        super();
+        this.readiness = readiness;
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
+            throws ServletException, IOException {
+        resp.setContentType("text/plain; charset=utf-8");
+        resp.setHeader("Cache-Control", "no-cache");
+
+        if (this.readiness.isReady()) {
+            resp.getWriter().write("ready\n");
+        } else {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.getWriter().write("not ready\n");
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package nz.caffe.osgi.launcher.web;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -27,12 +28,12 @@ import org.osgi.framework.BundleException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import nz.caffe.osgi.launcher.LoadCallback;
+import nz.caffe.osgi.launcher.ReferenceLoadCallback;
 
 /**
  * Allow loading bundles from inside a WAR file.
  */
-public final class ServletContextCallback implements LoadCallback {
+public final class ServletContextCallback implements ReferenceLoadCallback {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -76,4 +77,20 @@ public final class ServletContextCallback implements LoadCallback {
 
         return stream;
     }
+
+    public String getReferenceLocation(final String bundle) {
+        // only possible if the container has unpacked the WAR file.
+        final String realPath = this.servletContext.getRealPath(bundle);
+
+        if (realPath == null) {
+            return null;
+        }
+
+        final File file = new File(realPath);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        return "reference:" + file.toURI();
+    }
 }
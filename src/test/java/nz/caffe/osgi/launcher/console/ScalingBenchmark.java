@@ -0,0 +1,147 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.console;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.osgi.framework.Constants;
+
+import nz.caffe.osgi.launcher.impl.AutoProcessor;
+import nz.caffe.osgi.launcher.impl.StartupTimeline;
+
+/**
+ * Measures how the time until every bundle is active scales with the size of
+ * the deployment. For each size, a {@link SyntheticDeployment} is generated
+ * into the auto-deploy directories <tt>caffe.auto.deploy.dir.1</tt> to
+ * <tt>caffe.auto.deploy.dir.N</tt> and launched through
+ * {@link ConsoleLauncher} as with the <tt>--measure</tt> switch, against the
+ * framework found on the class path. The shape of the deployment is set with
+ * the <tt>caffe.scaling.*</tt> system properties.
+ */
+public final class ScalingBenchmark {
+
+    /**
+     * The system property used to specify how long, in milliseconds, each
+     * bundle activator takes to start. The default is 0.
+     **/
+    public static final String ACTIVATION_PROP = "caffe.scaling.activation";
+
+    /**
+     * The system property used to specify the budget, in microseconds per
+     * bundle, for the time until every bundle is active. A size exceeding it
+     * fails the run. Disabled by default.
+     **/
+    public static final String BUDGET_PROP = "caffe.scaling.budget";
+
+    /**
+     * The system property used to specify the share of fragments, in percent.
+     * The default is 10.
+     **/
+    public static final String FRAGMENTS_PROP = "caffe.scaling.fragments";
+
+    /**
+     * The system property used to specify how many packages each bundle
+     * imports from other bundles. The default is 3.
+     **/
+    public static final String IMPORTS_PROP = "caffe.scaling.imports";
+
+    /**
+     * The system property used to specify the number of start levels, each
+     * with its own auto-deploy directory. The default is 4.
+     **/
+    public static final String LEVELS_PROP = "caffe.scaling.levels";
+
+    /**
+     * The system property used to specify the seed of the generated
+     * deployments. The default is 1.
+     **/
+    public static final String SEED_PROP = "caffe.scaling.seed";
+
+    private static final int[] DEFAULT_SIZES = { 10, 100, 1000, 10000 };
+
+    /**
+     * @param args
+     *            the working directory, followed by the deployment sizes
+     * @throws Exception
+     *             if generating or launching a deployment fails
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: <work-dir> [<bundles> ...]");
+            System.exit(1);
+        }
+
+        final File workDir = new File(args[0]);
+        final List<Integer> sizes = new ArrayList<Integer>();
+        for (int i = 1; i < args.length; i++) {
+            sizes.add(Integer.valueOf(args[i]));
+        }
+        if (sizes.isEmpty()) {
+            for (final int size : DEFAULT_SIZES) {
+                sizes.add(Integer.valueOf(size));
+            }
+        }
+
+        final int levels = Integer.getInteger(LEVELS_PROP, 4).intValue();
+        final SyntheticDeployment deployment = new SyntheticDeployment(levels,
+                Integer.getInteger(IMPORTS_PROP, 3).intValue(), Integer.getInteger(FRAGMENTS_PROP, 10).intValue(),
+                Integer.getInteger(ACTIVATION_PROP, 0).intValue(), Long.getLong(SEED_PROP, 1).longValue());
+        final long budget = Long.getLong(BUDGET_PROP, 0).longValue();
+
+        final StringBuilder report = new StringBuilder("bundles\tready ms\tus per bundle\n");
+        int exitCode = 0;
+
+        for (final Integer size : sizes) {
+            final File sizeDir = new File(workDir, "n" + size);
+            final File bundleDir = new File(sizeDir, "bundle");
+            deployment.generate(bundleDir, size.intValue());
+
+            // the root directory only holds the level directories.
+            System.setProperty(AutoProcessor.AUTO_DEPLOY_DIR_PROPERTY, bundleDir.getPath());
+            for (int level = 1; level <= levels; level++) {
+                System.setProperty(AutoProcessor.AUTO_DEPLOY_DIR_PROPERTY + "." + level,
+                        new File(bundleDir, SyntheticDeployment.directoryName(level)).getPath());
+            }
+            if (System.getProperty(AutoProcessor.AUTO_DEPLOY_ACTION_PROPERTY) == null) {
+                System.setProperty(AutoProcessor.AUTO_DEPLOY_ACTION_PROPERTY, "install,start");
+            }
+            System.setProperty(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, Integer.toString(levels));
+            System.setProperty(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+            System.setProperty(StartupBenchmark.REPORT_PROP, new File(sizeDir, "timeline.txt").getPath());
+
+            final StartupTimeline timeline = new StartupTimeline();
+            final int result = StartupBenchmark.run(
+                    new ConsoleLauncher(null, new File(sizeDir, "cache").getPath(), new FileSystemCallback()),
+                    timeline);
+
+            final long ready = timeline.getMarkMillis("ready");
+            final long perBundle = (ready < 0) ? -1 : ready * 1000 / size.intValue();
+            report.append(size).append('\t').append(ready).append('\t').append(perBundle).append('\n');
+
+            if (result != 0) {
+                exitCode = Math.max(exitCode, result);
+            } else if (budget > 0 && perBundle > budget) {
+                exitCode = Math.max(exitCode, StartupBenchmark.EXIT_BUDGET_EXCEEDED);
+            }
+        }
+
+        System.out.print(report);
+
+        System.exit(exitCode);
+    }
+}
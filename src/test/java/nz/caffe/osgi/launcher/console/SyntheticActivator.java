@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.console;
+
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * The activator of the bundles generated by {@link SyntheticDeployment}. Each
+ * generated bundle carries its own copy of this class, so it must only depend
+ * on the framework API. Starting keeps the CPU busy for the time given in the
+ * {@link #ACTIVATION_HEADER} header, like an activator doing real work.
+ */
+public final class SyntheticActivator implements BundleActivator {
+
+    /**
+     * The manifest header giving how long, in milliseconds, starting the
+     * bundle takes.
+     */
+    public static final String ACTIVATION_HEADER = "Synthetic-Activation-Millis";
+
+    public void start(final BundleContext context) {
+        final String value = context.getBundle().getHeaders().get(ACTIVATION_HEADER);
+        if (value == null) {
+            return;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value.trim()));
+        while (System.nanoTime() - deadline < 0) {
+            // busy, not sleeping, so concurrent starts compete for the CPU
+        }
+    }
+
+    public void stop(final BundleContext context) {
+        // nothing to do
+    }
+}
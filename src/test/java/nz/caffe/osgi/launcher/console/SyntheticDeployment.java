@@ -0,0 +1,204 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.console;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Constants;
+
+/**
+ * Generates a deployment of synthetic bundles spread over the auto-deploy
+ * directories of several start levels. Bundle <tt>n</tt> exports the package
+ * <tt>synthetic.b&lt;n&gt;</tt> and imports packages exported by randomly
+ * chosen earlier bundles, so the bundles of a level only depend on the same or
+ * lower levels. A share of the bundles are fragments attached to an earlier
+ * bundle. The other bundles have a {@link SyntheticActivator}. The same seed
+ * generates the same deployment.
+ */
+final class SyntheticDeployment {
+
+    private static final String ACTIVATOR_ENTRY = SyntheticActivator.class.getName().replace('.', '/') + ".class";
+
+    private static final String PACKAGE_PREFIX = "synthetic.b";
+
+    private final int activationMillis;
+
+    private final int fragmentPercent;
+
+    private final int imports;
+
+    private final int levels;
+
+    private final long seed;
+
+    /**
+     * @param levels
+     *            the number of start levels
+     * @param imports
+     *            the number of packages each bundle imports
+     * @param fragmentPercent
+     *            the share of fragments, in percent
+     * @param activationMillis
+     *            how long each activator takes to start
+     * @param seed
+     *            the seed of the random choices
+     */
+    SyntheticDeployment(final int levels, final int imports, final int fragmentPercent, final int activationMillis,
+            final long seed) {
+        super();
+        this.levels = levels;
+        this.imports = imports;
+        this.fragmentPercent = fragmentPercent;
+        this.activationMillis = activationMillis;
+        this.seed = seed;
+    }
+
+    /**
+     * @param level
+     *            a start level
+     * @return the name of the directory holding the bundles of the level
+     */
+    static String directoryName(final int level) {
+        return "level-" + level;
+    }
+
+    /**
+     * Write the bundles into a sub-directory of the given directory per start
+     * level, see {@link #directoryName(int)}.
+     *
+     * @param dir
+     *            the directory to write to
+     * @param count
+     *            the number of bundles
+     * @throws IOException
+     *             if writing fails
+     */
+    void generate(final File dir, final int count) throws IOException {
+        final byte[] activator = readActivator();
+        final Random random = new Random(this.seed);
+        final List<Integer> hosts = new ArrayList<Integer>();
+
+        for (int level = 1; level <= this.levels; level++) {
+            final File levelDir = new File(dir, directoryName(level));
+            if (!levelDir.isDirectory() && !levelDir.mkdirs()) {
+                throw new IOException("Unable to create " + levelDir);
+            }
+        }
+
+        for (int n = 0; n < count; n++) {
+            // fill the levels in order, so providers are never in a higher
+            // level than the bundles which need them.
+            final int level = 1 + (int) ((long) n * this.levels / count);
+
+            final Manifest manifest = new Manifest();
+            final Attributes main = manifest.getMainAttributes();
+            main.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            main.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+            main.putValue(Constants.BUNDLE_SYMBOLICNAME, PACKAGE_PREFIX + n);
+            main.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+
+            final boolean fragment = !hosts.isEmpty() && random.nextInt(100) < this.fragmentPercent;
+            if (fragment) {
+                main.putValue(Constants.FRAGMENT_HOST,
+                        PACKAGE_PREFIX + hosts.get(random.nextInt(hosts.size())).intValue());
+            } else {
+                main.putValue(Constants.EXPORT_PACKAGE, PACKAGE_PREFIX + n + ";version=\"1.0.0\"");
+                main.putValue(Constants.BUNDLE_ACTIVATOR, SyntheticActivator.class.getName());
+                if (this.activationMillis > 0) {
+                    main.putValue(SyntheticActivator.ACTIVATION_HEADER, Integer.toString(this.activationMillis));
+                }
+
+                final StringBuilder importPackage = new StringBuilder("org.osgi.framework");
+                for (final Integer provider : pickProviders(hosts, random)) {
+                    importPackage.append(',').append(PACKAGE_PREFIX).append(provider).append(";version=\"[1,2)\"");
+                }
+                main.putValue(Constants.IMPORT_PACKAGE, importPackage.toString());
+            }
+
+            write(new File(new File(dir, directoryName(level)), PACKAGE_PREFIX + n + ".jar"), manifest,
+                    fragment ? null : activator, n);
+
+            if (!fragment) {
+                hosts.add(Integer.valueOf(n));
+            }
+        }
+    }
+
+    private Set<Integer> pickProviders(final List<Integer> candidates, final Random random) {
+        final Set<Integer> providers = new LinkedHashSet<Integer>();
+        final int wanted = Math.min(this.imports, candidates.size());
+
+        while (providers.size() < wanted) {
+            providers.add(candidates.get(random.nextInt(candidates.size())));
+        }
+
+        return providers;
+    }
+
+    private static byte[] readActivator() throws IOException {
+        final InputStream in = SyntheticDeployment.class.getClassLoader().getResourceAsStream(ACTIVATOR_ENTRY);
+        if (in == null) {
+            throw new IOException("Unable to read " + ACTIVATOR_ENTRY);
+        }
+
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            try {
+                in.close();
+            } catch (@SuppressWarnings("unused") final IOException ex) {
+                // ignored
+            }
+        }
+    }
+
+    private static void write(final File file, final Manifest manifest, final byte[] activator, final int n)
+            throws IOException {
+        final JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest);
+        try {
+            // the exported package needs content.
+            out.putNextEntry(new JarEntry(PACKAGE_PREFIX.replace('.', '/') + n + "/bundle.txt"));
+            out.write(Integer.toString(n).getBytes("UTF-8"));
+            out.closeEntry();
+
+            if (activator != null) {
+                out.putNextEntry(new JarEntry(ACTIVATOR_ENTRY));
+                out.write(activator);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2016-2017 Andrew Clemons <andrew.clemons@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nz.caffe.osgi.launcher.web;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Deploys and undeploys an exploded web application with a
+ * {@link FrameworkLoaderListener} over and over, the way a servlet container
+ * does on hot redeploys, to find leaks. Each cycle loads
+ * <tt>WEB-INF/classes</tt> and <tt>WEB-INF/lib/*.jar</tt> in a new class
+ * loader which only shares the servlet API with the harness, calls
+ * <tt>contextInitialized</tt> and <tt>contextDestroyed</tt> with a stand-in
+ * servlet context serving the web application directory, and reports the
+ * class metadata space used, the live threads and how many of the class loaders
+ * of earlier cycles are still reachable. The run fails when class loaders are
+ * retained or when the threads or the class metadata space keep growing over
+ * the second half of the cycles.
+ */
+public final class RedeployEndurance {
+
+    /**
+     * Only shares the servlet API, like a container, so everything else is
+     * loaded again for each deployment.
+     */
+    private static final class ContainerClassLoader extends ClassLoader {
+        ContainerClassLoader() {
+            super(null);
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("javax.servlet.")) {
+                return RedeployEndurance.class.getClassLoader().loadClass(name);
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    /**
+     * Serves the servlet context methods the launcher uses from the web
+     * application directory; the others return nothing.
+     */
+    private static final class StandInContext implements InvocationHandler {
+        private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        private final ClassLoader classLoader;
+        private final Properties params;
+        private final File root;
+
+        StandInContext(final File root, final ClassLoader classLoader, final Properties params) {
+            super();
+            this.root = root;
+            this.classLoader = classLoader;
+            this.params = params;
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final String name = method.getName();
+
+            if ("getInitParameter".equals(name)) {
+                return this.params.getProperty((String) args[0]);
+            } else if ("getInitParameterNames".equals(name)) {
+                return this.params.propertyNames();
+            } else if ("getAttribute".equals(name)) {
+                return this.attributes.get(args[0]);
+            } else if ("getAttributeNames".equals(name)) {
+                return Collections.enumeration(this.attributes.keySet());
+            } else if ("setAttribute".equals(name)) {
+                if (args[1] == null) {
+                    this.attributes.remove(args[0]);
+                } else {
+                    this.attributes.put((String) args[0], args[1]);
+                }
+                return null;
+            } else if ("removeAttribute".equals(name)) {
+                this.attributes.remove(args[0]);
+                return null;
+            } else if ("getResourcePaths".equals(name)) {
+                return resourcePaths((String) args[0]);
+            } else if ("getResourceAsStream".equals(name)) {
+                try {
+                    return new FileInputStream(file((String) args[0]));
+                } catch (@SuppressWarnings("unused") final FileNotFoundException ex) {
+                    return null;
+                }
+            } else if ("getResource".equals(name)) {
+                final File file = file((String) args[0]);
+                return file.exists() ? file.toURI().toURL() : null;
+            } else if ("getRealPath".equals(name)) {
+                return file((String) args[0]).getPath();
+            } else if ("getClassLoader".equals(name)) {
+                return this.classLoader;
+            } else if ("getContextPath".equals(name)) {
+                return "";
+            } else if ("getServletContextName".equals(name)) {
+                return this.root.getName();
+            } else if ("getMajorVersion".equals(name) || "getEffectiveMajorVersion".equals(name)) {
+                return Integer.valueOf(3);
+            } else if ("hashCode".equals(name)) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if ("equals".equals(name)) {
+                return Boolean.valueOf(proxy == args[0]);
+            } else if ("toString".equals(name)) {
+                return "Stand-in servlet context for " + this.root;
+            }
+
+            // log, addServlet and the rest
+            final Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            } else if (type == int.class) {
+                return Integer.valueOf(0);
+            }
+            return null;
+        }
+
+        private File file(final String path) {
+            return new File(this.root, path.startsWith("/") ? path.substring(1) : path);
+        }
+
+        private Set<String> resourcePaths(final String path) {
+            final File[] files = file(path).listFiles();
+            if (files == null) {
+                return null;
+            }
+
+            final String prefix = path.endsWith("/") ? path : path + "/";
+            final Set<String> paths = new HashSet<String>();
+            for (final File file : files) {
+                paths.add(prefix + file.getName() + (file.isDirectory() ? "/" : ""));
+            }
+            return paths;
+        }
+    }
+
+    /**
+     * The system property used to specify how many class loaders of earlier
+     * cycles may still be reachable. The default is 1, allowing for one which
+     * is still being released.
+     **/
+    public static final String MAX_RETAINED_PROP = "caffe.endurance.max.retained";
+
+    /**
+     * The system property used to specify the growth of the class metadata
+     * space, in KiB per cycle, which fails the run. The default is 64.
+     **/
+    public static final String MAX_METASPACE_GROWTH_PROP = "caffe.endurance.max.metaspace.growth";
+
+    /**
+     * The system property used to specify the growth of the live threads, per
+     * hundred cycles, which fails the run. The default is 5.
+     **/
+    public static final String MAX_THREAD_GROWTH_PROP = "caffe.endurance.max.thread.growth";
+
+    /**
+     * The prefix of the system properties passed to the web application as
+     * servlet context init parameters, e.g.
+     * <tt>caffe.endurance.param.readinessTimeout</tt>.
+     **/
+    public static final String PARAM_PREFIX = "caffe.endurance.param.";
+
+    private static final int DEFAULT_CYCLES = 200;
+
+    private static final int GC_ATTEMPTS = 5;
+
+    /**
+     * @param args
+     *            the exploded web application directory, followed by the
+     *            number of cycles (200 by default)
+     * @throws Exception
+     *             if a deployment can not be loaded
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: <webapp-dir> [<cycles>]");
+            System.exit(1);
+        }
+
+        final File root = new File(args[0]);
+        final int cycles = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_CYCLES;
+        final URL[] classPath = classPath(root);
+
+        final Properties params = new Properties();
+        for (final Map.Entry<Object, Object> entry : System.getProperties().entrySet()) {
+            final String key = (String) entry.getKey();
+            if (key.startsWith(PARAM_PREFIX)) {
+                params.setProperty(key.substring(PARAM_PREFIX.length()), (String) entry.getValue());
+            }
+        }
+
+        final List<WeakReference<ClassLoader>> loaders = new ArrayList<WeakReference<ClassLoader>>();
+        final double[] metaspace = new double[cycles];
+        final double[] threads = new double[cycles];
+        int retained = 0;
+
+        System.out.println("cycle\tmetaspace KiB\tthreads\tretained loaders");
+
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            loaders.add(deploy(root, classPath, params));
+
+            retained = collect(loaders);
+            final long metaspaceUsed = metaspaceUsed() / 1024;
+            final int threadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+            metaspace[cycle] = metaspaceUsed;
+            threads[cycle] = threadCount;
+
+            System.out.println(cycle + "\t" + metaspaceUsed + "\t" + threadCount + "\t" + retained);
+        }
+
+        final double metaspaceGrowth = slope(metaspace, cycles / 2);
+        final double threadGrowth = slope(threads, cycles / 2) * 100;
+        System.out.println("metaspace growth " + metaspaceGrowth + " KiB per cycle, thread growth " + threadGrowth
+                + " per hundred cycles, " + retained + " class loaders retained");
+
+        final boolean leaking = retained > Integer.getInteger(MAX_RETAINED_PROP, 1).intValue()
+                || metaspaceGrowth > Integer.getInteger(MAX_METASPACE_GROWTH_PROP, 64).intValue()
+                || threadGrowth > Integer.getInteger(MAX_THREAD_GROWTH_PROP, 5).intValue();
+        if (leaking) {
+            System.out.println("Redeploys are leaking");
+        }
+
+        System.exit(leaking ? 1 : 0);
+    }
+
+    private static URL[] classPath(final File root) throws Exception {
+        final List<URL> urls = new ArrayList<URL>();
+
+        final File classes = new File(root, "WEB-INF/classes");
+        if (classes.isDirectory()) {
+            urls.add(classes.toURI().toURL());
+        }
+
+        final File[] jars = new File(root, "WEB-INF/lib").listFiles();
+        if (jars != null) {
+            for (final File jar : jars) {
+                if (jar.getName().endsWith(".jar")) {
+                    urls.add(jar.toURI().toURL());
+                }
+            }
+        }
+
+        return urls.toArray(new URL[urls.size()]);
+    }
+
+    private static void close(final ClassLoader loader) {
+        // URLClassLoader.close() is not available on every supported JVM.
+        try {
+            loader.getClass().getMethod("close").invoke(loader);
+        } catch (@SuppressWarnings("unused") final Exception ex) {
+            // ignored
+        }
+    }
+
+    /**
+     * @return the number of class loaders still reachable after collecting
+     *         garbage
+     */
+    private static int collect(final List<WeakReference<ClassLoader>> loaders) throws InterruptedException {
+        int retained = 0;
+        for (int attempt = 0; attempt < GC_ATTEMPTS; attempt++) {
+            System.gc();
+            Thread.sleep(100);
+
+            retained = 0;
+            for (final WeakReference<ClassLoader> loader : loaders) {
+                if (loader.get() != null) {
+                    retained++;
+                }
+            }
+            if (retained == 0) {
+                break;
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * @return a weak reference to the class loader of the deployment
+     */
+    private static WeakReference<ClassLoader> deploy(final File root, final URL[] classPath,
+            final Properties params) throws Exception {
+        final ClassLoader loader = new URLClassLoader(classPath, new ContainerClassLoader());
+        final ServletContext context = (ServletContext) Proxy.newProxyInstance(
+                RedeployEndurance.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+                new StandInContext(root, loader, params));
+        final ServletContextEvent event = new ServletContextEvent(context);
+
+        final Thread thread = Thread.currentThread();
+        final ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            final ServletContextListener listener = (ServletContextListener) loader
+                    .loadClass(FrameworkLoaderListener.class.getName()).newInstance();
+
+            listener.contextInitialized(event);
+            listener.contextDestroyed(event);
+        } finally {
+            thread.setContextClassLoader(previous);
+            close(loader);
+        }
+
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    private static long metaspaceUsed() {
+        long used = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().indexOf("Metaspace") >= 0 || pool.getName().indexOf("Perm Gen") >= 0) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the least squares slope of the values from the given index
+     */
+    private static double slope(final double[] values, final int from) {
+        final int n = values.length - from;
+        if (n < 2) {
+            return 0;
+        }
+
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = from; i < values.length; i++) {
+            sumX += i;
+            sumY += values[i];
+        }
+
+        final double meanX = sumX / n;
+        final double meanY = sumY / n;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = from; i < values.length; i++) {
+            covariance += (i - meanX) * (values[i] - meanY);
+            variance += (i - meanX) * (i - meanX);
+        }
+
+        return covariance / variance;
+    }
+}